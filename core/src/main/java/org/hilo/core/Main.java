@@ -25,12 +25,11 @@ public class Main {
         //map.init(73, Files.readAllLines(new File("../core/demo-map-01.txt").getAbsoluteFile().toPath(), US_ASCII));
         debugWithPutty();
         final GameTime time = injector.getInstance(GameTime.class);
-        final AI ai = injector.getInstance(AI.Randomized.class);
+        injector.getInstance(AI.Randomized.class); //thinks on its own GameTime schedule
         //noinspection InfiniteLoopStatement
         while (true){
             Thread.sleep(100L);
             time.tick();
-            ai.think(null);
             map.applyOperations();
             renderer.render();
         }
@@ -14,6 +14,8 @@ public abstract class AI extends GameObject {
 
     @Singleton
     public static class Randomized extends AI {
+        private static final int THINK_PERIOD = 7;
+
         @Inject
         protected GameMap map;
         @Inject
@@ -21,18 +23,29 @@ public abstract class AI extends GameObject {
         @Inject
         protected Rnd rnd;
 
+        @Inject
+        protected void start() {
+            time.periodic(THINK_PERIOD, 0, null, new Runnable() {
+                @Override
+                public void run() {
+                    think(null);
+                }
+            });
+        }
+
         @Override
         public void think(final Character mind) {
             for (final Actor.Enemy enemy : map.list(Actor.Enemy.class)) {
-                if (time.getClock()%7==0) {
-                    if (enemy.isMoved()) {
-                        enemy.step();
-                    } else {
-                        if (!enemy.act()) {
-                            enemy.rotate();
-                        }
-                        enemy.step();
+                if (!map.isActive(enemy, THINK_PERIOD)) {
+                    continue;
+                }
+                if (enemy.isMoved()) {
+                    enemy.step();
+                } else {
+                    if (!enemy.act()) {
+                        enemy.rotate();
                     }
+                    enemy.step();
                 }
             }
 
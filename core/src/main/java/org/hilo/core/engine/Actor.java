@@ -3,6 +3,7 @@ package org.hilo.core.engine;
 import com.google.common.collect.Iterables;
 import com.google.inject.Inject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -59,6 +60,7 @@ public abstract class Actor extends GameMap.MapUnit implements GameObject.Damage
                 this.things.add(thing);
                 map.remove(thing);
             }
+            map.rehash(this);
         }
     }
 
@@ -66,6 +68,7 @@ public abstract class Actor extends GameMap.MapUnit implements GameObject.Damage
     public void damage(final int damage) {
         status = "Damage " + damage + " hits";
         this.health -= damage;
+        map.rehash(this);
         if (health <= 0) {
             status = "Dead";
             map.remove(this);
@@ -119,15 +122,45 @@ public abstract class Actor extends GameMap.MapUnit implements GameObject.Damage
         map.move(this, GameMap.Direction.Down);
     }
 
+    /**
+     * Health and number of things in the bag.
+     */
+    @Override
+    public int getHashState() {
+        return health * 31 + things.size();
+    }
+
+    @Override
+    public void writeState(final Snapshot.Output out) throws IOException {
+        out.writeByte(direction.ordinal());
+        out.writeInt(health);
+        out.writeUTF(status);
+        out.writeInt(things.size());
+        for (final Thing thing : things) {
+            out.writeUnit(thing);
+        }
+    }
+
+    @Override
+    public void readState(final Snapshot.Input in) throws IOException {
+        direction = GameMap.Direction.values()[in.readByte()];
+        health = in.readInt();
+        status = in.readUTF();
+        things.clear();
+        for (int count = in.readInt(); count > 0; count--) {
+            things.add(in.readUnit(Thing.class));
+        }
+    }
+
     public boolean act() {
         status = "Act ";
         if (!things.isEmpty()) {
-            if (firstSuccess(Usable.class, map.list(getPosition().translate(direction))).use(this)) {
+            if (firstSuccess(Usable.USE, map.list(getPosition().translate(direction)), this)) {
                 status += "thing used!";
                 return true;
             }
         }
-        if (firstSuccess(Usable.class,map.list(getPosition())).use(this)) {
+        if (firstSuccess(Usable.USE, map.list(getPosition()), this)) {
             status += "pressed";
             return true;
         }
@@ -181,6 +214,30 @@ public abstract class Actor extends GameMap.MapUnit implements GameObject.Damage
         }
 
 
+        @Override
+        public void writeState(final Snapshot.Output out) throws IOException {
+            super.writeState(out);
+            out.writeInt(jumping);
+            out.writeByte(toolCode(tool));
+            out.writeByte(toolCode(otherTool));
+        }
+
+        @Override
+        public void readState(final Snapshot.Input in) throws IOException {
+            super.readState(in);
+            jumping = in.readInt();
+            tool = toolOf(in.readByte());
+            otherTool = toolOf(in.readByte());
+        }
+
+        private int toolCode(final Weapon weapon) {
+            return weapon == null ? 0 : weapon == pistol ? 1 : 2;
+        }
+
+        private Weapon toolOf(final int code) {
+            return code == 0 ? null : code == 1 ? pistol : knife;
+        }
+
         public void jump() {
             status = "Jump";
             if (map.isHold(getPosition())) {
@@ -230,10 +287,22 @@ public abstract class Actor extends GameMap.MapUnit implements GameObject.Damage
             return moved;
         }
 
+        @Override
+        public void writeState(final Snapshot.Output out) throws IOException {
+            super.writeState(out);
+            out.writeBoolean(moved);
+        }
+
+        @Override
+        public void readState(final Snapshot.Input in) throws IOException {
+            super.readState(in);
+            moved = in.readBoolean();
+        }
+
         @Override
         public void onCollide(final GameMap.Direction direction, final List<GameMap.MapUnit> collisions, final boolean allowCrossing) {
             super.onCollide(direction, collisions, allowCrossing);
-            allVoid(Damageable.class, collisions).damage(25);
+            allVoid(Damageable.DAMAGE, collisions, 25);
         }
 
         @Override
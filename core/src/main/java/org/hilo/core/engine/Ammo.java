@@ -2,6 +2,7 @@ package org.hilo.core.engine;
 
 import com.google.inject.Inject;
 
+import java.io.IOException;
 import java.util.List;
 
 import static org.hilo.core.utils.ListProxy.allVoid;
@@ -30,9 +31,19 @@ public abstract class Ammo extends GameMap.MapUnit {
 
     protected abstract int getDamage();
 
+    @Override
+    public void writeState(final Snapshot.Output out) throws IOException {
+        out.writeByte(direction.ordinal());
+    }
+
+    @Override
+    public void readState(final Snapshot.Input in) throws IOException {
+        direction = GameMap.Direction.values()[in.readByte()];
+    }
+
     @Override
     public void onCollide(final GameMap.Direction direction, final List<GameMap.MapUnit> collisions, final boolean allowCrossing) {
-        allVoid(Damageable.class, collisions).damage(getDamage());
+        allVoid(Damageable.DAMAGE, collisions, getDamage());
         if (!allowCrossing) {
             map.remove(this);
             terminate();
@@ -60,6 +71,18 @@ public abstract class Ammo extends GameMap.MapUnit {
             //silent.
         }
 
+        @Override
+        public void writeState(final Snapshot.Output out) throws IOException {
+            super.writeState(out);
+            out.writeInt(lifetime);
+        }
+
+        @Override
+        public void readState(final Snapshot.Input in) throws IOException {
+            super.readState(in);
+            lifetime = in.readInt();
+        }
+
         @Override
         public View render() {
             return new View(null, Paint.WHITE_BRIGHT, '-', false);
@@ -67,7 +90,12 @@ public abstract class Ammo extends GameMap.MapUnit {
     }
 
     public static class Bullet extends Ammo {
-        private int lifetime;
+        @Inject
+        protected GameTime time;
+        /**
+         * Ticks bullet moves on, taken from the tick it was placed on.
+         */
+        protected int phase = -1;
 
         @Override
         protected int getDamage() {
@@ -75,10 +103,29 @@ public abstract class Ammo extends GameMap.MapUnit {
         }
 
         @Override
-        public void onTick() {
-            if ((++lifetime) % 3 == 0) {
-                map.move(this, direction);
+        public void onPlace() {
+            if (phase < 0) {
+                //moves on every third tick, counting the tick it was placed on as the first one.
+                phase = (time.getClock() + 2) % 3;
             }
+            time.periodic(3, phase, this, new Runnable() {
+                @Override
+                public void run() {
+                    map.move(Bullet.this, direction);
+                }
+            });
+        }
+
+        @Override
+        public void writeState(final Snapshot.Output out) throws IOException {
+            super.writeState(out);
+            out.writeInt(phase);
+        }
+
+        @Override
+        public void readState(final Snapshot.Input in) throws IOException {
+            super.readState(in);
+            phase = in.readInt();
         }
 
         @Override
@@ -116,7 +163,7 @@ public abstract class Ammo extends GameMap.MapUnit {
         public void onCollide(final GameMap.Direction direction, final List<GameMap.MapUnit> collisions, final boolean allowCrossing) {
             if (!allowCrossing) {
                 for (final GameMap.Direction around : GameMap.Direction.values()) {
-                    allVoid(Damageable.class, map.list(getPosition().translate(around))).damage(50);
+                    allVoid(Damageable.DAMAGE, map.list(getPosition().translate(around)), 50);
                 }
                 map.remove(this);
                 terminate();
@@ -151,7 +198,7 @@ public abstract class Ammo extends GameMap.MapUnit {
         @Override
         public void onCollide(final GameMap.Direction direction, final List<GameMap.MapUnit> collisions, final boolean allowCrossing) {
             for (final GameMap.Direction around : GameMap.Direction.values()) {
-                allVoid(Damageable.class, map.list(getPosition().translate(around))).damage(getDamage());
+                allVoid(Damageable.DAMAGE, map.list(getPosition().translate(around)), getDamage());
             }
             map.remove(this);
             terminate();
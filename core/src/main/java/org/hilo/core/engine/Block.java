@@ -2,6 +2,7 @@ package org.hilo.core.engine;
 
 import com.google.common.collect.Iterables;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -18,6 +19,11 @@ public abstract class Block extends GameMap.MapUnit {
     }
 
     public static class Rock extends Block {
+        @Override
+        public boolean isPageable() {
+            return true;
+        }
+
         @Override
         public View render() {
             return new View(null, null, '\u2588', false);
@@ -30,11 +36,27 @@ public abstract class Block extends GameMap.MapUnit {
         @Override
         public void damage(final int damage) {
             health -= damage;
+            map.rehash(this);
             if (health <= 0) {
                 map.remove(this);
             }
         }
 
+        @Override
+        public int getHashState() {
+            return health;
+        }
+
+        @Override
+        public void writeState(final Snapshot.Output out) throws IOException {
+            out.writeInt(health);
+        }
+
+        @Override
+        public void readState(final Snapshot.Input in) throws IOException {
+            health = in.readInt();
+        }
+
         @Override
         public View render() {
             return new View(null, null, '░', false);
@@ -47,11 +69,27 @@ public abstract class Block extends GameMap.MapUnit {
         @Override
         public void damage(final int damage) {
             health -= damage;
+            map.rehash(this);
             if (health <= 0) {
                 map.remove(this);
             }
         }
 
+        @Override
+        public int getHashState() {
+            return health;
+        }
+
+        @Override
+        public void writeState(final Snapshot.Output out) throws IOException {
+            out.writeInt(health);
+        }
+
+        @Override
+        public void readState(final Snapshot.Input in) throws IOException {
+            health = in.readInt();
+        }
+
         @Override
         public boolean isFall() {
             return true;
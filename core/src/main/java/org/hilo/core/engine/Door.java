@@ -2,6 +2,8 @@ package org.hilo.core.engine;
 
 import com.google.common.collect.Iterables;
 
+import java.io.IOException;
+
 /**
 * @author dmitry.mamonov
 *         Created: 10/31/13 10:57 PM
@@ -32,17 +34,38 @@ public abstract class Door extends GameMap.MapUnit {
             if (key!=null) {
                 actor.getThings().add(key);
                 key = null;
+                map.rehash(this);
+                map.rehash(actor);
+                map.touch(getPosition());
                 return true;
             } else {
                 final Thing.Key key = Iterables.getFirst(Iterables.filter(actor.getThings(), Thing.Key.class), null);
                 if (key != null) {
                     actor.getThings().remove(key);
                     this.key = key;
+                    map.rehash(this);
+                    map.rehash(actor);
+                    map.touch(getPosition());
                     return true;
                 }
             }
             return false;
         }
+
+        @Override
+        public int getHashState() {
+            return key != null ? 1 : 0;
+        }
+
+        @Override
+        public void writeState(final Snapshot.Output out) throws IOException {
+            out.writeUnit(key);
+        }
+
+        @Override
+        public void readState(final Snapshot.Input in) throws IOException {
+            key = in.readUnit(Thing.Key.class);
+        }
     }
 
     public static class Automatic extends Door {
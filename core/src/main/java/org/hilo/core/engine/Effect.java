@@ -1,5 +1,7 @@
 package org.hilo.core.engine;
 
+import java.io.IOException;
+
 /**
  * @author dmitry.mamonov
  *         Created: 10/31/13 11:21 PM
@@ -9,16 +11,38 @@ public abstract class Effect extends GameMap.MapUnit {
 
     @Override
     public void onTick() {
-        if (--countdown <= 0) {
+        countdown--;
+        map.rehash(this);
+        if (countdown <= 0) {
             map.remove(this);
         }
     }
 
+    @Override
+    public int getHashState() {
+        return countdown;
+    }
+
+    @Override
+    public void writeState(final Snapshot.Output out) throws IOException {
+        out.writeInt(countdown);
+    }
+
+    @Override
+    public void readState(final Snapshot.Input in) throws IOException {
+        countdown = in.readInt();
+    }
+
     @Override
     public final boolean isAllowCrossing() {
         return true;
     }
 
+    @Override
+    public boolean isAnimated() {
+        return true;
+    }
+
     public static class Blood extends Effect {
         @Override
         public View render() {
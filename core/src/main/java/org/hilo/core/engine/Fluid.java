@@ -1,7 +1,8 @@
 package org.hilo.core.engine;
 
 import com.google.inject.Inject;
-import org.hilo.core.utils.Rnd;
+
+import java.io.IOException;
 
 import static org.hilo.core.utils.ListProxy.allVoid;
 
@@ -10,8 +11,6 @@ import static org.hilo.core.utils.ListProxy.allVoid;
  *         Created: 11/2/13 5:06 PM
  */
 public abstract class Fluid extends GameMap.MapUnit {
-    @Inject
-    protected Rnd rnd;
     protected GameMap.Direction lastDirection = GameMap.Direction.Right;
 
     @Override
@@ -33,7 +32,17 @@ public abstract class Fluid extends GameMap.MapUnit {
         if (!moved) {
             lastDirection = lastDirection.inverse();
         }
-        allVoid(Damageable.class, map.list(getPosition())).damage(1);
+        allVoid(Damageable.DAMAGE, map.list(getPosition()), 1);
+    }
+
+    @Override
+    public void writeState(final Snapshot.Output out) throws IOException {
+        out.writeByte(lastDirection.ordinal());
+    }
+
+    @Override
+    public void readState(final Snapshot.Input in) throws IOException {
+        lastDirection = GameMap.Direction.values()[in.readByte()];
     }
 
     public static class Water extends Fluid {
@@ -52,30 +61,71 @@ public abstract class Fluid extends GameMap.MapUnit {
         public void damage(final int damage) {
             if (flaming == Integer.MIN_VALUE && damage > 1) { //TODO [DM] fluids make damage on themselfs
                 flaming = 300;
+                burn();
+            }
+        }
+
+        private void burn() {
+            map.rehash(this);
+            time.periodic(10, 0, this, new Runnable() {
+                @Override
+                public void run() {
+                    if (flaming > 0) {
+                        for (final GameMap.Direction direction : GameMap.Direction.horizontalAndUpDirections) {
+                            allVoid(Damageable.DAMAGE, map.list(getPosition().translate(direction)), 10);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onPlace() {
+            if (flaming != Integer.MIN_VALUE) {
+                //restored from a snapshot while burning.
+                burn();
             }
         }
 
+        @Override
+        public void writeState(final Snapshot.Output out) throws IOException {
+            super.writeState(out);
+            out.writeInt(flaming);
+        }
+
+        @Override
+        public void readState(final Snapshot.Input in) throws IOException {
+            super.readState(in);
+            flaming = in.readInt();
+        }
+
         @Override
         public void onTick() {
             super.onTick();
             if (flaming >= 0) {
                 flaming--;
+                map.rehash(this);
                 if (flaming <= 0) {
-                    allVoid(Damageable.class, map.list(getPosition().translate(GameMap.Direction.Down))).damage(10);
+                    allVoid(Damageable.DAMAGE, map.list(getPosition().translate(GameMap.Direction.Down)), 10);
                     map.remove(this);
-                } else {
-                    if (time.getClock() % 10 == 0) {
-                        for (final GameMap.Direction direction : GameMap.Direction.horizontalAndUpDirections) {
-                            allVoid(Damageable.class, map.list(getPosition().translate(direction))).damage(10);
-                        }
-                    }
                 }
             }
         }
 
+        @Override
+        public int getHashState() {
+            return flaming;
+        }
+
+        @Override
+        public boolean isAnimated() {
+            return flaming > 0;
+        }
+
         @Override
         public View render() {
-            return new View(flaming > 0 ? (rnd.nextInt(2) % 2 == 0 ? Paint.YELLOW_BRIGHT : Paint.RED_BRIGHT) : Paint.BLACK_BRIGHT, null, null, false);
+            //flicker by clock, rendering must not draw from the random numbers of the simulation.
+            return new View(flaming > 0 ? ((time.getClock() + hashCode()) % 2 == 0 ? Paint.YELLOW_BRIGHT : Paint.RED_BRIGHT) : Paint.BLACK_BRIGHT, null, null, false);
         }
     }
 }
@@ -1,15 +1,28 @@
 package org.hilo.core.engine;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author dmitry.mamonov
  *         Created: 11/1/13 10:17 PM
  */
 public abstract class Game {
     private static final Logger log = LoggerFactory.getLogger(Game.class);
+    /**
+     * Milliseconds the shutdown waits for the loop to finish its tick and close the journal.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 5000L;
     @Inject
     protected GameMap map;
     @Inject
@@ -19,24 +32,104 @@ public abstract class Game {
     @Inject
     protected SshServerProvider face;
     @Inject
-    private AI.Randomized ai;
+    protected Journal journal;
+    @Inject
+    @SuppressWarnings("UnusedDeclaration")
+    private AI.Randomized ai; //thinks on its own GameTime schedule
+    /**
+     * World is restored from that file on start instead of loading the level, and saved into it periodically.
+     */
+    @Nullable
+    protected File snapshotFile = System.getProperty("hilo.snapshot.file") != null ? new File(System.getProperty("hilo.snapshot.file")) : null;
+    /**
+     * Ticks between saved snapshots, zero saves none.
+     */
+    protected int snapshotPeriod = Integer.getInteger("hilo.snapshot.period", 0);
+    /**
+     * Player commands are journaled into that file from the start, see {@link Replay}.
+     */
+    @Nullable
+    protected File journalFile = System.getProperty("hilo.journal.file") != null ? new File(System.getProperty("hilo.journal.file")) : null;
+    private final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("hilo-snapshot").setDaemon(true).build());
+    private volatile boolean running = true;
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
     protected abstract void load();
 
-    @SuppressWarnings("InfiniteLoopStatement")
+    /**
+     * Runs the game until the JVM shuts down, the journal is closed on the game thread after the last tick.
+     */
     public void loop(final long delay) {
-        load();
-        while (true) {
+        if (snapshotFile != null && snapshotFile.isFile()) {
             try {
-                time.tick();
-                ai.think(null);
-                map.applyOperations();
-                renderer.render();
-                Thread.sleep(delay);
-            } catch (Throwable th) {
-                log.error("Loop failed", th);
-                th.printStackTrace();
+                map.restore(Snapshot.read(snapshotFile));
+                log.info("Restored world from " + snapshotFile);
+            } catch (IOException e) {
+                log.error("Failed to restore " + snapshotFile + ", loading level", e);
+                load();
             }
+        } else {
+            load();
         }
+        if (journalFile != null) {
+            try {
+                journal.start(journalFile);
+            } catch (IOException e) {
+                log.error("Failed to start journal " + journalFile, e);
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+                try {
+                    stopped.await(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "hilo-shutdown"));
+        try {
+            while (running) {
+                try {
+                    time.tick();
+                    map.applyOperations();
+                    if (snapshotFile != null && snapshotPeriod > 0 && time.getClock() % snapshotPeriod == 0) {
+                        save(snapshotFile);
+                    }
+                    journal.onTick();
+                    renderer.render();
+                    Thread.sleep(delay);
+                } catch (Throwable th) {
+                    log.error("Loop failed", th);
+                    th.printStackTrace();
+                }
+            }
+        } finally {
+            try {
+                journal.stop();
+            } catch (IOException e) {
+                log.error("Failed to stop journal " + journalFile, e);
+            }
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the world on the game thread and writes it on a background thread.
+     */
+    protected void save(final File file) {
+        final Snapshot snapshot = map.snapshot();
+        snapshotWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.write(file);
+                } catch (IOException e) {
+                    log.error("Failed to save snapshot into " + file, e);
+                }
+            }
+        });
     }
 }
@@ -6,33 +6,49 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
-import com.google.inject.Injector;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import org.fusesource.jansi.Ansi;
-import org.hilo.core.utils.LinkedHashMapList;
+import org.hilo.core.utils.Grid;
+import org.hilo.core.utils.InputQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import javax.inject.Named;
 import java.awt.*;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Optional.fromNullable;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Predicates.instanceOf;
 import static com.google.common.collect.Iterables.*;
 
 /**
@@ -41,6 +57,22 @@ import static com.google.common.collect.Iterables.*;
  */
 @Singleton
 public class GameMap {
+    /**
+     * Ticks between page outs of chunks far from players.
+     */
+    private static final int PAGE_PERIOD = 64;
+    /**
+     * Chunks of reduced detail tick once per that number of ticks.
+     */
+    private static final int REDUCED_RATE = 4;
+    /**
+     * Maximal number of ticks a chunk catches up after it is back to full detail.
+     */
+    private static final int MAX_LAG = 64;
+    /**
+     * Rows of a text map compiled at once by a streaming load.
+     */
+    private static final int LEVEL_BAND_ROWS = 64;
     private final Logger log = LoggerFactory.getLogger(GameMap.class);
 
     public enum Direction {
@@ -99,58 +131,170 @@ public class GameMap {
 
     }
 
-    private static class MapOperation {
-        private final MapUnit unit;
-        private final boolean fall;
-        private final boolean create;
-        private final Direction moveTo;
-
-        private MapOperation(final MapUnit unit, final Direction moveTo, final boolean create, final boolean fall) {
-            this.unit = unit;
-            this.moveTo = moveTo;
-            this.fall = fall;
-            this.create = create;
+    /**
+     * Growable queue of pending moves and creations, kept as parallel arrays of units and encoded operations.
+     * Two buffers are swapped on each tick, so queueing allocates nothing once the arrays are large enough.
+     */
+    private static final class OperationBuffer {
+        private static final Direction[] DIRECTIONS = Direction.values();
+        private static final int DIRECTION_MASK = 0xFF;
+        private static final int CREATE = 1 << 8;
+        private static final int FALL = 1 << 9;
+
+        private MapUnit[] units = new MapUnit[64];
+        private int[] codes = new int[64];
+        private int size = 0;
+
+        private void move(final MapUnit unit, final Direction moveTo) {
+            add(unit, moveTo.ordinal());
         }
 
-        public static MapOperation move(final MapUnit unit, final Direction moveTo) {
-            return new MapOperation(unit, moveTo, false, false);
+        private void fall(final MapUnit unit) {
+            add(unit, Direction.Down.ordinal() | FALL);
         }
 
-        public static MapOperation fall(final MapUnit unit) {
-            return new MapOperation(unit, Direction.Down, false, true);
+        private void create(final MapUnit unit) {
+            add(unit, Direction.Center.ordinal() | CREATE);
         }
 
-        public static MapOperation create(final MapUnit unit) {
-            return new MapOperation(unit, Direction.Center, true, false);
+        private void add(final MapUnit unit, final int code) {
+            if (size == units.length) {
+                units = Arrays.copyOf(units, size * 2);
+                codes = Arrays.copyOf(codes, size * 2);
+            }
+            units[size] = unit;
+            codes[size] = code;
+            size++;
         }
 
-        private boolean isCreate() {
-            return create;
+        private static Direction getMoveTo(final int code) {
+            return DIRECTIONS[code & DIRECTION_MASK];
         }
 
-        private MapUnit getUnit() {
-            return unit;
+        private static boolean isCreate(final int code) {
+            return (code & CREATE) != 0;
         }
 
-        private Direction getMoveTo() {
-            return moveTo;
+        private static boolean isFall(final int code) {
+            return (code & FALL) != 0;
         }
 
-        private boolean isFall() {
-            return fall;
+        /**
+         * Drops unit references, so removed units are not retained by the buffer.
+         */
+        private void clear() {
+            Arrays.fill(units, 0, size, null);
+            size = 0;
         }
     }
 
-    @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
-    private final Map<Position, List<MapUnit>> map = new LinkedHashMapList<>();
+    private Grid<MapUnit> cells = new Grid<>(0, 0);
     private final Set<MapUnit> lastFalls = new HashSet<>();
-
+    /**
+     * Zobrist hash of placed units, see {@link #getHash()}.
+     */
+    private long hash = 0L;
+
+    /**
+     * Actions offered by other threads, drained at the start of each tick.
+     */
+    private final InputQueue<Runnable> input = new InputQueue<>();
+    private final InputQueue.Lane<Runnable> defaultInput = input.newLane(
+            Integer.MAX_VALUE, Integer.MAX_VALUE, InputQueue.Overflow.DROP);
     private final List<Runnable> actions = new ArrayList<>();
-    private final List<MapOperation> operations = new ArrayList<>();
+    /**
+     * Operations queued for the next tick, and the buffer drained by the current one.
+     */
+    private OperationBuffer operations = new OperationBuffer();
+    private OperationBuffer draining = new OperationBuffer();
     private final List<MapUnit> removes = new ArrayList<>();
 
+    private final Map<Class<?>, Set<MapUnit>> typeIndex = new HashMap<>();
+    private final Map<String, Set<MapUnit>> nameIndex = new HashMap<>();
+    private final Map<Class<?>, UnitType> unitTypes = new ConcurrentHashMap<>();
+
+    /**
+     * Units which override {@link MapUnit#onTick()}, ticked every tick.
+     */
+    private final Set<MapUnit> ticking = new LinkedHashSet<>();
+    /**
+     * Sleeping units which may fall and had a change next to them, checked on the next fall tick.
+     */
+    private final Set<MapUnit> awake = new LinkedHashSet<>();
+
+    /**
+     * Retained framebuffer: rendered cells and rows, recomposed only where cells were changed.
+     */
+    private String[] frameCells = new String[0];
+    private String[] frameRows = new String[0];
+    private boolean[] dirtyCells = new boolean[0];
+    private boolean[] dirtyRows = new boolean[0];
+    private String frame = null;
+    /**
+     * Screen indices of cells rendered differently since {@link #takeChangedCells()}, top row first.
+     */
+    private int[] changedCells = new int[0];
+    private int changedCount = 0;
+    private boolean[] changedMarks = new boolean[0];
+
+    /**
+     * Units reach cells next to their own while they tick, two rows keep regions of the same parity apart.
+     */
+    private static final int MIN_REGION_ROWS = 2;
+    /**
+     * Rows per region and threads ticking regions at once, zero rows ticks units without regions.
+     */
+    private int regionRows = Integer.getInteger("hilo.map.regionRows", 0);
+    private int regionThreads = Integer.getInteger("hilo.map.regionThreads", Runtime.getRuntime().availableProcessors());
+    private Region[] regions = null;
+    @Nullable
+    private ForkJoinPool regionPool = null;
+    private final ThreadLocal<Region> runningRegion = new ThreadLocal<>();
+
+    /**
+     * Page file for chunks of static units with no players within the radius, null keeps all chunks in memory.
+     */
+    @Nullable
+    private File pageFile = System.getProperty("hilo.map.pageFile") != null ? new File(System.getProperty("hilo.map.pageFile")) : null;
+    private int pageRadius = Integer.getInteger("hilo.map.pageRadius", 2 * Grid.CHUNK_SIZE);
+    private final List<Class<? extends MapUnit>> pageTypes = new ArrayList<>();
+    /**
+     * Units paged in on access since the last tick, indexed at the start of the next one,
+     * so indexes do not change while units iterate them.
+     */
+    private final List<MapUnit> pagedIn = new ArrayList<>();
+
+    /**
+     * Distances to players for full and reduced detail, zero simulates all chunks in full detail.
+     */
+    private int detailNear = Integer.getInteger("hilo.map.detailNear", 0);
+    private int detailFar = Integer.getInteger("hilo.map.detailFar", 0);
+    private Detail[] details = new Detail[0];
+    /**
+     * Ticks missed by each chunk, chunks in full detail tick twice per tick until they catch up.
+     */
+    private int[] lags = new int[0];
+    private boolean[] catchingUp = new boolean[0];
+    private final GameTime.Gate detailGate = new GameTime.Gate() {
+        @Override
+        public boolean isActive(final Object owner, final GameTime.Schedule schedule) {
+            return !(owner instanceof MapUnit) || GameMap.this.isActive((MapUnit) owner, Math.max(schedule.getPeriod(), 1));
+        }
+    };
+    private final Map<Class<? extends MapUnit>, Integer> pageTypeIds = new HashMap<>();
+    /**
+     * Due periodic schedules run in the unit tick phase in index order of their owners, other owners go first.
+     */
+    private static final Comparator<GameTime.Schedule> OWNER_ORDER = new Comparator<GameTime.Schedule>() {
+        @Override
+        public int compare(final GameTime.Schedule left, final GameTime.Schedule right) {
+            return Long.compare(orderOf(left), orderOf(right));
+        }
+    };
+    private long nextOrder = 0L;
+
     @Inject
-    private Injector injector;
+    private UnitFactory units;
     @Inject
     private PositionProvider positionProvider;
     @Inject
@@ -168,123 +312,790 @@ public class GameMap {
     }
 
     public <T extends MapUnit> T create(final Class<T> type) {
-        final T mapObject = injector.getInstance(type);
-        operations.add(MapOperation.create(mapObject));
+        final T mapObject = units.create(type);
+        queue().create(mapObject);
         return mapObject;
     }
 
     public void put(final MapUnit unit) {
         unit.setPosition(positionProvider.get());
-        operations.add(MapOperation.create(unit));
+        queue().create(unit);
     }
 
     public GameMap move(final MapUnit obj, final Direction moveTo) {
         checkNotNull(obj);
         checkNotNull(moveTo);
-        operations.add(MapOperation.move(obj, moveTo));
+        queue().move(obj, moveTo);
         return this;
     }
 
     public void remove(final MapUnit mapUnit) {
-        removes.add(mapUnit);
+        final Region region = currentRegion();
+        (region != null ? region.removed : removes).add(mapUnit);
     }
 
-    public Iterable<MapUnit> list(final Position position) {
-        return unmodifiableIterable(map.get(position));
+    public List<MapUnit> list(final Position position) {
+        return Collections.unmodifiableList(cells.get(position.x, position.y));
     }
 
     public <T> List<T> list(final Position position, final Class<T> filter) {
-        return ImmutableList.copyOf(Iterables.filter(map.get(position), filter));
+        return ImmutableList.copyOf(Iterables.filter(cells.get(position.x, position.y), filter));
     }
 
-    public <T extends MapUnit> Iterable<T> list(final Class<T> filter) {
+    /**
+     * @param filter unit class, any of its superclasses or implemented interfaces.
+     */
+    public <T> Iterable<T> list(final Class<T> filter) {
+        final Set<MapUnit> members = typeIndex.get(filter);
+        if (members == null) {
+            return ImmutableList.of();
+        }
         //noinspection unchecked
-        return (Iterable<T>) unmodifiableIterable(filter(concat(map.values()), instanceOf(filter)));
+        return (Iterable<T>) unmodifiableIterable(members);
     }
 
-    public <T extends MapUnit> Iterable<T> list(final Class<T> filter, final String name) {
+    public <T> Iterable<T> list(final Class<T> filter, final String name) {
+        final Set<MapUnit> named = name != null ? nameIndex.get(name) : typeIndex.get(filter);
+        if (named == null) {
+            return ImmutableList.of();
+        }
         //noinspection unchecked
-        return (Iterable<T>) unmodifiableIterable(filter(filter(concat(map.values()), instanceOf(filter)), new Predicate<MapUnit>() {
+        return (Iterable<T>) unmodifiableIterable(filter(named, new Predicate<MapUnit>() {
             @Override
             public boolean apply(final MapUnit unit) {
-                return Objects.equal(unit.getName(), name);
+                return filter.isInstance(unit) && Objects.equal(unit.getName(), name);
             }
         }));
     }
 
+    private void index(final MapUnit unit) {
+        unit.order = nextOrder++;
+        final UnitType unitType = unitType(unit.getClass());
+        if (unitType.ticking) {
+            ticking.add(unit);
+        }
+        for (final Class<?> type : unitType.closure) {
+            Set<MapUnit> members = typeIndex.get(type);
+            if (members == null) {
+                members = new LinkedHashSet<>();
+                typeIndex.put(type, members);
+            }
+            members.add(unit);
+        }
+        final String name = unit.getName();
+        if (name != null) {
+            Set<MapUnit> named = nameIndex.get(name);
+            if (named == null) {
+                named = new LinkedHashSet<>();
+                nameIndex.put(name, named);
+            }
+            named.add(unit);
+        }
+    }
 
-    public void applyOperations() {
-        synchronized (this) {
-            for (final Runnable action : actions) {
-                action.run();
+    private void unindex(final MapUnit unit) {
+        time.release(unit);
+        ticking.remove(unit);
+        awake.remove(unit);
+        for (final Class<?> type : unitType(unit.getClass()).closure) {
+            final Set<MapUnit> members = typeIndex.get(type);
+            if (members != null) {
+                members.remove(unit);
+            }
+        }
+        final String name = unit.getName();
+        if (name != null) {
+            final Set<MapUnit> named = nameIndex.get(name);
+            if (named != null) {
+                named.remove(unit);
+            }
+        }
+    }
+
+    private UnitType unitType(final Class<? extends MapUnit> type) {
+        UnitType unitType = unitTypes.get(type);
+        if (unitType == null) {
+            unitType = new UnitType(type);
+            unitTypes.put(type, unitType);
+        }
+        return unitType;
+    }
+
+    /**
+     * Zobrist hash of the world: an xor of keys of placed units, each one by cell, type
+     * and {@link MapUnit#getHashState()}. It is updated as units are placed, moved, removed and changed,
+     * so runs are compared between ticks without walking the world. Same worlds have same hashes.
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Updates key of the unit in the world hash, called by units once their hash state is changed.
+     */
+    public void rehash(final MapUnit unit) {
+        if (unit.hashed) {
+            hash(unit.hashKey);
+            unit.hashKey = hashKey(unit, unit.getPosition().x, unit.getPosition().y);
+            hash(unit.hashKey);
+        }
+    }
+
+    private void hashIn(final MapUnit unit, final int x, final int y) {
+        unit.hashKey = hashKey(unit, x, y);
+        unit.hashed = true;
+        hash(unit.hashKey);
+    }
+
+    private void hashOut(final MapUnit unit) {
+        if (unit.hashed) {
+            hash(unit.hashKey);
+            unit.hashed = false;
+        }
+    }
+
+    /**
+     * Keys are collected per region while regions run, see {@link Region#merge()}.
+     */
+    private void hash(final long key) {
+        final Region region = currentRegion();
+        if (region != null) {
+            region.hash ^= key;
+        } else {
+            hash ^= key;
+        }
+    }
+
+    private long hashKey(final MapUnit unit, final int x, final int y) {
+        return mix(mix(mix(((long) x << 32) ^ (y & 0xFFFFFFFFL)) ^ unitType(unit.getClass()).hash) + unit.getHashState());
+    }
+
+    /**
+     * Mixes bits of the value, finalizer of SplitMix64.
+     */
+    private static long mix(final long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Marks cell as changed: it is redrawn on next render, units in it and right above it may start to fall.
+     */
+    public void touch(final Position position) {
+        touch(position.x, position.y);
+    }
+
+    private void touch(final int x, final int y) {
+        wake(cells.get(x, y));
+        wake(cells.get(x, y + Direction.Up.getY()));
+        redraw(x, y);
+    }
+
+    private void redraw(final int x, final int y) {
+        if (cells.contains(x, y)) {
+            dirtyCells[y * width + x] = true;
+            dirtyRows[y] = true;
+            frame = null;
+        }
+    }
+
+    private void wake(final List<MapUnit> unitList) {
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < unitList.size(); i++) {
+            final MapUnit unit = unitList.get(i);
+            final UnitType unitType = unitType(unit.getClass());
+            if (unitType.falling && !unitType.ticking) {
+                final Region region = currentRegion();
+                (region != null ? region.woken : awake).add(unit);
+            }
+        }
+    }
+
+    private static class UnitType {
+        /**
+         * Class itself, all of its superclasses and all implemented interfaces.
+         */
+        private final List<Class<?>> closure;
+        private final boolean ticking;
+        private final boolean falling;
+        /**
+         * Key of the type in the world hash, by class name, so it is the same in every run.
+         */
+        private final long hash;
+
+        private UnitType(final Class<? extends MapUnit> type) {
+            final Set<Class<?>> types = new LinkedHashSet<>();
+            for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+                types.add(clazz);
+                collectInterfaces(clazz, types);
+            }
+            this.closure = ImmutableList.copyOf(types);
+            this.ticking = isOverridden(type, "onTick");
+            this.falling = isOverridden(type, "isFall");
+            this.hash = mix(type.getName().hashCode());
+        }
+
+        private static void collectInterfaces(final Class<?> type, final Set<Class<?>> types) {
+            for (final Class<?> face : type.getInterfaces()) {
+                if (types.add(face)) {
+                    collectInterfaces(face, types);
+                }
+            }
+        }
+
+        private static boolean isOverridden(final Class<?> type, final String methodName) {
+            try {
+                return type.getMethod(methodName).getDeclaringClass() != MapUnit.class;
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+
+    private void page() {
+        cells.compact();
+        if (regionRows > 0) {
+            return;
+        }
+        final int chunkRadius = (pageRadius + Grid.CHUNK_SIZE - 1) / Grid.CHUNK_SIZE;
+        final List<Position> players = new ArrayList<>();
+        for (final Actor.Player player : this.<Actor.Player>list(Actor.Player.class)) {
+            players.add(player.getPosition());
+        }
+        for (int chunkY = 0; chunkY < cells.getChunksY(); chunkY++) {
+            for (int chunkX = 0; chunkX < cells.getChunksX(); chunkX++) {
+                boolean near = false;
+                for (final Position player : players) {
+                    if (Math.abs((player.x >> Grid.CHUNK_BITS) - chunkX) <= chunkRadius
+                            && Math.abs((player.y >> Grid.CHUNK_BITS) - chunkY) <= chunkRadius) {
+                        near = true;
+                        break;
+                    }
+                }
+                if (!near && !cells.isPaged(chunkX, chunkY)) {
+                    cells.pageOut(chunkX, chunkY);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores static units of paged chunks as type and name, units are unindexed while paged out.
+     * Paged in units are not placed again, so units which own schedules stay resident, see {@link #indexPagedIn()}.
+     */
+    private class UnitPager implements Grid.Pager<MapUnit> {
+        @Override
+        public boolean isPageable(final MapUnit unit) {
+            return unit.isPageable() && !time.isOwner(unit);
+        }
+
+        @Override
+        public void pageOut(final MapUnit unit, final DataOutput out) throws IOException {
+            final Class<? extends MapUnit> type = unit.getClass();
+            Integer typeId = pageTypeIds.get(type);
+            if (typeId == null) {
+                typeId = pageTypes.size();
+                pageTypes.add(type);
+                pageTypeIds.put(type, typeId);
+            }
+            out.writeShort(typeId);
+            final String name = unit.getName();
+            out.writeBoolean(name != null);
+            if (name != null) {
+                out.writeUTF(name);
             }
-            actions.clear();
+            unindex(unit);
         }
 
+        @Override
+        public MapUnit pageIn(final int x, final int y, final DataInput in) throws IOException {
+            final Class<? extends MapUnit> type = pageTypes.get(in.readShort());
+            final String name = in.readBoolean() ? in.readUTF() : null;
+            final String pendingName = nameProvider.get();
+            nameProvider.set(name);
+            final MapUnit unit = units.create(type);
+            nameProvider.set(pendingName);
+            unit.setPosition(new Position(x, y));
+            //paged units are static, their hash key did not change while they were paged out.
+            unit.hashKey = hashKey(unit, x, y);
+            unit.hashed = true;
+            pagedIn.add(unit);
+            return unit;
+        }
+    }
+
+    private void indexPagedIn() {
+        for (final MapUnit unit : pagedIn) {
+            index(unit);
+        }
+        pagedIn.clear();
+    }
+
+    /**
+     * Switches region mode, see {@link #applyRegions(boolean)}. Results of a region mode run are the same
+     * for any number of threads, units of neighbouring regions tick in another order than in serial mode though.
+     *
+     * @param rows    rows per region, at least {@value #MIN_REGION_ROWS}, zero turns region mode off.
+     * @param threads size of the pool ticking regions, one ticks them on the game thread.
+     */
+    public void setRegions(final int rows, final int threads) {
+        checkArgument((rows == 0 || rows >= MIN_REGION_ROWS) && threads > 0, "Bad regions: %s rows, %s threads", rows, threads);
+        this.regionRows = rows;
+        this.regionThreads = threads;
+        this.regions = null;
+        if (regionPool != null) {
+            regionPool.shutdown();
+            regionPool = null;
+        }
+    }
+
+    /**
+     * Enables paging of chunks from the next {@link #init(int, List)}, chunks are paged in again on access.
+     * Paging is suspended in region mode, see {@link #setRegions(int, int)}.
+     *
+     * @param file   page file, null disables paging.
+     * @param radius chunks with a player closer than that number of cells are kept in memory.
+     */
+    public void setPaging(@Nullable final File file, final int radius) {
+        this.pageFile = file;
+        this.pageRadius = radius;
+    }
+
+    /**
+     * Enables level of detail simulation: units and their periodic tasks run every tick near players, once per
+     * {@value #REDUCED_RATE} ticks further and not at all beyond. Chunks back to full detail catch up
+     * on missed ticks of {@link MapUnit#onTick()}, missed periodic tasks are skipped.
+     *
+     * @param near distance in cells to the closest player for full detail, zero disables level of detail.
+     * @param far  distance for reduced detail.
+     */
+    public void setDetail(final int near, final int far) {
+        checkArgument(near >= 0 && far >= near, "Bad detail distances: %s, %s", near, far);
+        this.detailNear = near;
+        this.detailFar = far;
+        time.setGate(near > 0 ? detailGate : null);
+    }
+
+    /**
+     * @return detail of the chunk of given cell, cells out of the map are in full detail.
+     */
+    public Detail getDetail(final Position position) {
+        final int chunk = chunkOf(position);
+        return detailNear > 0 && chunk >= 0 ? details[chunk] : Detail.FULL;
+    }
+
+    /**
+     * @param period ticks between actions of the unit.
+     * @return true if unit acts on this tick according to detail of its chunk.
+     */
+    public boolean isActive(final MapUnit unit, final int period) {
+        switch (getDetail(unit.getPosition())) {
+            case FULL:
+                return true;
+            case REDUCED:
+                return (time.getClock() / period) % REDUCED_RATE == 0;
+            default:
+                return false;
+        }
+    }
+
+    private int chunkOf(final Position position) {
+        if (!cells.contains(position.x, position.y)) {
+            return -1;
+        }
+        return (position.y >> Grid.CHUNK_BITS) * cells.getChunksX() + (position.x >> Grid.CHUNK_BITS);
+    }
+
+    private void updateDetails() {
+        final int chunksX = cells.getChunksX();
+        final int chunksY = cells.getChunksY();
+        if (details.length != chunksX * chunksY) {
+            details = new Detail[chunksX * chunksY];
+            lags = new int[details.length];
+            catchingUp = new boolean[details.length];
+        }
+        Arrays.fill(details, Detail.FROZEN);
+        for (final Actor.Player player : this.<Actor.Player>list(Actor.Player.class)) {
+            final Position position = player.getPosition();
+            final int fromY = Math.max(0, (position.y - detailFar) >> Grid.CHUNK_BITS);
+            final int toY = Math.min(chunksY - 1, (position.y + detailFar) >> Grid.CHUNK_BITS);
+            final int fromX = Math.max(0, (position.x - detailFar) >> Grid.CHUNK_BITS);
+            final int toX = Math.min(chunksX - 1, (position.x + detailFar) >> Grid.CHUNK_BITS);
+            for (int chunkY = fromY; chunkY <= toY; chunkY++) {
+                for (int chunkX = fromX; chunkX <= toX; chunkX++) {
+                    final int distance = Math.max(
+                            distance(position.x, chunkX << Grid.CHUNK_BITS),
+                            distance(position.y, chunkY << Grid.CHUNK_BITS));
+                    final Detail detail = distance <= detailNear ? Detail.FULL : distance <= detailFar ? Detail.REDUCED : Detail.FROZEN;
+                    final int chunk = chunkY * chunksX + chunkX;
+                    if (detail.ordinal() < details[chunk].ordinal()) {
+                        details[chunk] = detail;
+                    }
+                }
+            }
+        }
+        for (int chunk = 0; chunk < details.length; chunk++) {
+            catchingUp[chunk] = false;
+            if (details[chunk] == Detail.FULL) {
+                if (lags[chunk] > 0) {
+                    lags[chunk]--;
+                    catchingUp[chunk] = true;
+                }
+            } else if (details[chunk] == Detail.FROZEN || time.getClock() % REDUCED_RATE != 0) {
+                lags[chunk] = Math.min(MAX_LAG, lags[chunk] + 1);
+            }
+        }
+    }
+
+    /**
+     * @return distance from the coordinate to the closest cell of chunk starting at given origin.
+     */
+    private static int distance(final int coordinate, final int origin) {
+        return Math.max(0, Math.max(origin - coordinate, coordinate - (origin + Grid.CHUNK_SIZE - 1)));
+    }
+
+    public void applyOperations() {
+        indexPagedIn();
+        if (pageFile != null && time.getClock() % PAGE_PERIOD == 0) {
+            page();
+        }
+        input.drainTo(actions);
+        for (final Runnable action : actions) {
+            action.run();
+        }
+        actions.clear();
+
         for (final MapUnit mapUnit : removes) {
-            map.get(mapUnit.getPosition()).remove(mapUnit);
+            final Position position = mapUnit.getPosition();
+            if (cells.remove(position.x, position.y, mapUnit)) {
+                hashOut(mapUnit);
+                unindex(mapUnit);
+                touch(position.x, position.y);
+            }
         }
         removes.clear();
 
-        final ImmutableList<MapOperation> currentOperations = ImmutableList.copyOf(operations);
-        operations.clear();
-        for (final MapOperation operation : currentOperations) {
-            final MapUnit unit = operation.getUnit();
-            final boolean create = operation.isCreate();
-            final Direction moveTo = operation.getMoveTo();
-            final List<MapUnit> sourceUnitList = map.get(unit.getPosition());
-            final Position targetPosition = unit.getPosition().translate(moveTo);
-            final List<MapUnit> targetUnitList = map.get(targetPosition);
-            if (create || sourceUnitList.contains(unit)) {
-                boolean allowCrossing = true;
-                if (!targetUnitList.isEmpty()) {
-                    for (final MapUnit targetUnit : targetUnitList) {
-                        if (targetUnit.isCollideBack()) {
-                            targetUnit.onCollide(moveTo, ImmutableList.of(unit), unit.isAllowCrossing());
-                        }
-                        if (!targetUnit.isAllowCrossing()) {
-                            allowCrossing = false;
-                            break;
-                        }
-                    }
-                    unit.onCollide(moveTo.inverse(), targetUnitList, allowCrossing);
+        //operations queued while draining go to the other buffer and are applied on the next tick.
+        final OperationBuffer current = operations;
+        operations = draining;
+        draining = current;
+        final boolean doFalls = time.getClock() % 3 == 0;
+        if (detailNear > 0) {
+            updateDetails();
+        }
+        try {
+            for (int i = 0; i < current.size; i++) {
+                applyOperation(current.units[i], current.codes[i]);
+            }
+        } finally {
+            current.clear();
+        }
+        if (regionRows > 0 && height > 0) {
+            applyRegions(doFalls);
+        } else {
+            tickUnits(doFalls);
+        }
+        if (doFalls) {
+            for (final MapUnit unit : ImmutableList.copyOf(awake)) {
+                fall(unit);
+            }
+            awake.clear();
+            lastFalls.clear();
+        }
+    }
+
+    private void applyOperation(final MapUnit unit, final int code) {
+        final boolean create = OperationBuffer.isCreate(code);
+        final Direction moveTo = OperationBuffer.getMoveTo(code);
+        final Position sourcePosition = unit.getPosition();
+        final int targetX = sourcePosition.x + moveTo.getX();
+        final int targetY = sourcePosition.y + moveTo.getY();
+        final List<MapUnit> sourceUnitList = cells.get(sourcePosition.x, sourcePosition.y);
+        final List<MapUnit> targetUnitList = cells.get(targetX, targetY);
+        if (create || sourceUnitList.contains(unit)) {
+            if (!cells.contains(targetX, targetY)) {
+                //map edge is solid: moves are blocked, creations are dropped.
+                if (!create) {
+                    unit.onCollide(moveTo.inverse(), ImmutableList.<MapUnit>of(), false);
                 }
-                if (allowCrossing || create) {
-                    if (!create) {
-                        sourceUnitList.remove(unit);
+                return;
+            }
+            boolean allowCrossing = true;
+            if (!targetUnitList.isEmpty()) {
+                for (final MapUnit targetUnit : targetUnitList) {
+                    if (targetUnit.isCollideBack()) {
+                        targetUnit.onCollide(moveTo, ImmutableList.of(unit), unit.isAllowCrossing());
                     }
-                    targetUnitList.add(unit);
-                    unit.setPosition(targetPosition);
-                    unit.onMove();
-                    if (operation.isFall()) {
-                        lastFalls.add(unit);
+                    if (!targetUnit.isAllowCrossing()) {
+                        allowCrossing = false;
+                        break;
                     }
                 }
+                unit.onCollide(moveTo.inverse(), targetUnitList, allowCrossing);
+            }
+            if (allowCrossing || create) {
+                if (!create) {
+                    cells.remove(sourcePosition.x, sourcePosition.y, unit);
+                    hashOut(unit);
+                    touch(sourcePosition.x, sourcePosition.y);
+                }
+                cells.add(targetX, targetY, unit);
+                hashIn(unit, targetX, targetY);
+                if (create) {
+                    index(unit);
+                }
+                touch(targetX, targetY);
+                if (create) {
+                    unit.onPlace();
+                }
+                unit.setPosition(moveTo == Direction.Center ? sourcePosition : new Position(targetX, targetY));
+                unit.onMove();
+                if (OperationBuffer.isFall(code)) {
+                    lastFalls.add(unit);
+                }
             }
         }
-        final boolean doFalls = time.getClock() % 3 == 0;
-        for (final MapUnit unit : ImmutableList.copyOf(Iterables.concat(map.values()))) {
+    }
+
+    /**
+     * Ticks units and runs due periodic callbacks of units in index order, a unit ticks before its own callbacks.
+     */
+    private void tickUnits(final boolean doFalls) {
+        final List<MapUnit> units = ImmutableList.copyOf(ticking);
+        final List<GameTime.Schedule> schedules = takeDueSchedules();
+        int next = 0;
+        for (final MapUnit unit : units) {
+            while (next < schedules.size() && orderOf(schedules.get(next)) < unit.order) {
+                run(schedules.get(next++));
+            }
+            tick(unit, doFalls);
+        }
+        while (next < schedules.size()) {
+            run(schedules.get(next++));
+        }
+    }
+
+    private List<GameTime.Schedule> takeDueSchedules() {
+        final List<GameTime.Schedule> schedules = time.takeDue();
+        Collections.sort(schedules, OWNER_ORDER);
+        return schedules;
+    }
+
+    private static long orderOf(final GameTime.Schedule schedule) {
+        final Object owner = schedule.getOwner();
+        return owner instanceof MapUnit ? ((MapUnit) owner).order : -1L;
+    }
+
+    /**
+     * Runs callback of a due schedule, unless its owner was removed since.
+     */
+    private static void run(final GameTime.Schedule schedule) {
+        if (!schedule.isCancelled()) {
+            schedule.getCallback().run();
+        }
+    }
+
+    private void tick(final MapUnit unit, final boolean doFalls) {
+        final int ticks = detailNear > 0 ? ticksOf(unit) : 1;
+        if (ticks == 0) {
+            return;
+        }
+        for (int i = 0; i < ticks; i++) {
             unit.onTick();
-            if (doFalls) {
-                if (unit.isFall()) {
-                    final boolean holdStill = isHold(unit.getPosition()) && unit.isHoldOn();
-                    if (!holdStill) {
-                        final boolean doFall = isAllowCrossing(unit.getPosition().translate(Direction.Down));
-                        if (doFall || lastFalls.contains(unit)) {
-                            operations.add(MapOperation.fall(unit));
-                        }
+        }
+        if (unit.isAnimated()) {
+            final Position position = unit.getPosition();
+            redraw(position.x, position.y);
+        }
+        if (doFalls) {
+            fall(unit);
+        }
+    }
+
+    /**
+     * @return number of {@link MapUnit#onTick()} calls on this tick, by detail of the unit chunk.
+     */
+    private int ticksOf(final MapUnit unit) {
+        final int chunk = chunkOf(unit.getPosition());
+        if (chunk < 0) {
+            return 1;
+        }
+        switch (details[chunk]) {
+            case FULL:
+                return catchingUp[chunk] ? 2 : 1;
+            case REDUCED:
+                return time.getClock() % REDUCED_RATE == 0 ? 1 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    private void fall(final MapUnit unit) {
+        if (unit.isFall()) {
+            final Position position = unit.getPosition();
+            final boolean holdStill = isHold(position.x, position.y) && unit.isHoldOn();
+            if (!holdStill) {
+                final boolean doFall = isAllowCrossing(position.x, position.y + Direction.Down.getY());
+                if (doFall || lastFalls.contains(unit)) {
+                    queue().fall(unit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ticks units and runs their due periodic callbacks by regions, horizontal bands of rows: each region runs its
+     * units in index order on one thread, even regions at once first, odd ones after them. Units reach one cell
+     * around their own, so regions running at once never share a cell. A region collects effects its units leave
+     * outside of their cells (queued operations, removes, woken units, schedules and keys of the world hash),
+     * regions are merged in band order, so the result does not depend on the number of threads.
+     */
+    private void applyRegions(final boolean doFalls) {
+        if (regions == null) {
+            //paging is suspended in region mode, no unit is paged in while regions run.
+            cells.pageInAll();
+            indexPagedIn();
+            final int rows = Math.max(regionRows, MIN_REGION_ROWS);
+            regions = new Region[(height + rows - 1) / rows];
+            for (int index = 0; index < regions.length; index++) {
+                regions[index] = new Region();
+            }
+            if (regionThreads > 1 && regionPool == null) {
+                regionPool = new ForkJoinPool(regionThreads);
+            }
+        }
+        final List<GameTime.Schedule> schedules = takeDueSchedules();
+        int next = 0;
+        for (final MapUnit unit : ImmutableList.copyOf(ticking)) {
+            while (next < schedules.size() && orderOf(schedules.get(next)) < unit.order) {
+                assign(schedules.get(next++));
+            }
+            regions[regionOf(unit.getPosition().y)].steps.add(unit);
+        }
+        while (next < schedules.size()) {
+            assign(schedules.get(next++));
+        }
+        for (int parity = 0; parity < 2; parity++) {
+            final List<Region> batch = new ArrayList<>((regions.length + 1) / 2);
+            for (int index = parity; index < regions.length; index += 2) {
+                if (!regions[index].steps.isEmpty()) {
+                    regions[index].doFalls = doFalls;
+                    batch.add(regions[index]);
+                }
+            }
+            try {
+                if (regionPool != null && batch.size() > 1) {
+                    for (final Future<Void> done : regionPool.invokeAll(batch)) {
+                        done.get();
+                    }
+                } else {
+                    for (final Region region : batch) {
+                        region.call();
                     }
                 }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Region failed", e);
             }
         }
-        if (doFalls) {
-            lastFalls.clear();
+        for (final Region region : regions) {
+            region.merge();
+        }
+    }
+
+    /**
+     * Adds due schedule to the region of its owner, schedules of other owners run right away.
+     */
+    private void assign(final GameTime.Schedule schedule) {
+        final Object owner = schedule.getOwner();
+        if (owner instanceof MapUnit) {
+            regions[regionOf(((MapUnit) owner).getPosition().y)].steps.add(schedule);
+        } else {
+            run(schedule);
+        }
+    }
+
+    private int regionOf(final int y) {
+        return Math.max(0, Math.min(regions.length - 1, y / Math.max(regionRows, MIN_REGION_ROWS)));
+    }
+
+    /**
+     * @return queue of operations for the next tick, own queue of the region being run by current thread.
+     */
+    private OperationBuffer queue() {
+        final Region region = currentRegion();
+        return region != null ? region.queued : operations;
+    }
+
+    @Nullable
+    private Region currentRegion() {
+        return regionRows > 0 ? runningRegion.get() : null;
+    }
+
+    /**
+     * Horizontal band of rows, collects effects of its units until merged on the game thread.
+     */
+    private final class Region implements Callable<Void> {
+        /**
+         * Units to tick and due schedules of units, in index order.
+         */
+        private final List<Object> steps = new ArrayList<>();
+        private final OperationBuffer queued = new OperationBuffer();
+        private final List<MapUnit> removed = new ArrayList<>();
+        private final List<MapUnit> woken = new ArrayList<>();
+        private final List<GameTime.Schedule> schedules = new ArrayList<>();
+        private long hash = 0L;
+        private boolean doFalls;
+
+        @Override
+        public Void call() {
+            runningRegion.set(this);
+            time.defer(schedules);
+            try {
+                for (final Object step : steps) {
+                    if (step instanceof MapUnit) {
+                        tick((MapUnit) step, doFalls);
+                    } else {
+                        run((GameTime.Schedule) step);
+                    }
+                }
+            } finally {
+                time.defer(null);
+                runningRegion.remove();
+                steps.clear();
+            }
+            return null;
+        }
+
+        private void merge() {
+            time.commit(schedules);
+            GameMap.this.hash ^= hash;
+            hash = 0L;
+            removes.addAll(removed);
+            removed.clear();
+            awake.addAll(woken);
+            woken.clear();
+            for (int i = 0; i < queued.size; i++) {
+                operations.add(queued.units[i], queued.codes[i]);
+            }
+            queued.clear();
         }
     }
 
     public boolean isAllowCrossing(final Position position) {
-        for (final MapUnit unit : map.get(position)) {
-            if (!unit.isAllowCrossing()) {
+        return isAllowCrossing(position.x, position.y);
+    }
+
+    private boolean isAllowCrossing(final int x, final int y) {
+        if (!cells.contains(x, y)) {
+            return false;
+        }
+        final List<MapUnit> unitList = cells.get(x, y);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < unitList.size(); i++) {
+            if (!unitList.get(i).isAllowCrossing()) {
                 return false;
             }
         }
@@ -292,8 +1103,14 @@ public class GameMap {
     }
 
     public boolean isHold(final Position position) {
-        for (final MapUnit unit : map.get(position)) {
-            if (unit.isHold()) {
+        return isHold(position.x, position.y);
+    }
+
+    private boolean isHold(final int x, final int y) {
+        final List<MapUnit> unitList = cells.get(x, y);
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0; i < unitList.size(); i++) {
+            if (unitList.get(i).isHold()) {
                 return true;
             }
         }
@@ -312,91 +1129,312 @@ public class GameMap {
     }
 
     public String render() {
-        final Ansi ansi = Ansi.ansi();
-        for (int y = height - 1; y >= 0; y--) {
-            for (int x = 0; x < width; x++) {
-                final MapUnit.View unitView = new MapUnit.View(null, null, null, false);
-                final List<MapUnit> unitList = map.get(new Position(x, y));
-                try {
-                    for (final MapUnit unit : unitList) {
-                        unitView.join(unit.render());
+        if (frame == null) {
+            final StringBuilder result = new StringBuilder();
+            for (int y = height - 1; y >= 0; y--) {
+                if (dirtyRows[y]) {
+                    final StringBuilder row = new StringBuilder();
+                    for (int x = 0; x < width; x++) {
+                        final int index = y * width + x;
+                        if (dirtyCells[index]) {
+                            final String cell = renderCell(x, y);
+                            if (!cell.equals(frameCells[index])) {
+                                frameCells[index] = cell;
+                                markChanged((height - 1 - y) * width + x);
+                            }
+                            dirtyCells[index] = false;
+                        }
+                        row.append(frameCells[index]);
                     }
-                } catch (RuntimeException re) {
-                    re.printStackTrace();
+                    frameRows[y] = row.toString();
+                    dirtyRows[y] = false;
                 }
-                unitView.render(ansi);
+                result.append(frameRows[y]).append(GameRenderer.LINE_BREAK);
             }
-            ansi.a(GameRenderer.LINE_BREAK);
+            frame = result.toString();
         }
+        return frame;
+    }
+
+    private void markChanged(final int screenIndex) {
+        if (!changedMarks[screenIndex]) {
+            changedMarks[screenIndex] = true;
+            if (changedCount == changedCells.length) {
+                changedCells = Arrays.copyOf(changedCells, Math.max(16, changedCount * 2));
+            }
+            changedCells[changedCount++] = screenIndex;
+        }
+    }
+
+    /**
+     * Renders the map and takes cells changed since the previous call.
+     *
+     * @return ascending screen indices {@code row * width + x} of changed cells, top row first.
+     */
+    public int[] takeChangedCells() {
+        render();
+        final int[] result = Arrays.copyOf(changedCells, changedCount);
+        Arrays.sort(result);
+        for (final int screenIndex : result) {
+            changedMarks[screenIndex] = false;
+        }
+        changedCount = 0;
+        return result;
+    }
+
+    /**
+     * @return rendered cell by its screen index, see {@link #takeChangedCells()}.
+     */
+    public String getRenderedCell(final int screenIndex) {
+        final int row = screenIndex / width;
+        return frameCells[(height - 1 - row) * width + screenIndex % width];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    private String renderCell(final int x, final int y) {
+        final Ansi ansi = Ansi.ansi();
+        final MapUnit.View unitView = new MapUnit.View(null, null, null, false);
+        final List<MapUnit> unitList = cells.get(x, y);
+        try {
+            for (final MapUnit unit : unitList) {
+                unitView.join(unit.render());
+            }
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+        }
+        unitView.render(ansi);
         return ansi.toString();
     }
 
+    /**
+     * Loads a text map, see {@link Level#compile(int, List)}.
+     */
     public void init(final int width, final List<String> lines) {
-        this.width = width;
-        this.height = lines.size();
-        final Map<Character, Class<? extends MapUnit>> mapping = ImmutableMap.<Character, Class<? extends MapUnit>>builder()
-                .put('P', Actor.Player.class)
-                .put('E', Actor.Enemy.class)
-                .put('e', Actor.SmallEnemy.class)
-                .put('W', Block.Rock.class)
-                .put('D', Door.Locked.class)
-                .put('K', Thing.Key.class)
-                .put('_', Ammo.Mine.class)
-                .put('*', Ammo.Grenade.class)
-                .put('>', Transport.TravelatorRight.class)
-                .put('<', Transport.TravelatorLeft.class)
-                .put('T', Transport.Teleport.class)
-                .put('H', Transport.Ladder.class)
-                .put('-', Transport.Rope.class)
-                .put('^', Transport.Elevator.class)
-                .put('}', Transport.PushRight.class)
-                .put('{', Transport.PushLeft.class)
-                .put('X', Block.Box.class)
-                .put('S', Block.Sand.class)
-                .put('~', Fluid.Water.class)
-                .put('g', Fluid.Gasoline.class)
-                .build();
-        int y = 0;
-        for (final String line : Lists.reverse(ImmutableList.copyOf(lines))) {
-            if (y >= height) {
-                break;
-            } else {
-                int x = 0;
-                final String namingPart = (line.length() > width ? line.substring(width) : "").trim();
-                @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
-                final Map<Character, List<String>> knownNames = new LinkedHashMapList<>();
-                if (!namingPart.isEmpty()) {
-                    for (final String name : namingPart.split("\\s+")) {
-                        if (name.length() >= 3 && name.substring(1, 2).equals("=")) {
-                            final Character key = name.charAt(0);
-                            final String named = name.substring(2);
-                            knownNames.get(key).add(named);
-                        } else {
-                            log.error("Bad name '" + name + "' at line: " + line);
-                        }
-                    }
-                }
-                for (final char ch : line.toCharArray()) {
-                    if (x >= width) {
-                        break;
-                    } else {
-                        if (mapping.containsKey(ch)) {
-                            final List<String> nameList = knownNames.get(ch);
-                            if (nameList.size() > 0) {
-                                final String useName = nameList.remove(0);
-                                setName(useName);
+        init(Level.compile(width, lines));
+    }
+
+    public void init(final Level level) {
+        reset(level.getWidth(), level.getHeight());
+        place(level, 0);
+        applyOperations();
+    }
+
+    /**
+     * Loads a text map band by band, bands are compiled by given number of threads and placed in order.
+     */
+    public void init(final LevelReader reader, final int threads) {
+        reset(reader.getWidth(), reader.getHeight());
+        if (threads <= 1) {
+            for (int y = 0; y < height; y += LEVEL_BAND_ROWS) {
+                place(reader.band(y, Math.min(y + LEVEL_BAND_ROWS, height)), y);
+            }
+        } else {
+            final ExecutorService pool = Executors.newFixedThreadPool(threads,
+                    new ThreadFactoryBuilder().setNameFormat("hilo-level-%d").setDaemon(true).build());
+            try {
+                //bands are compiled ahead of placing within a bounded window.
+                final Deque<Future<Level>> bands = new ArrayDeque<>();
+                int next = 0;
+                for (int y = 0; y < height; y += LEVEL_BAND_ROWS) {
+                    while (next < height && bands.size() < threads * 2) {
+                        final int fromY = next;
+                        bands.add(pool.submit(new Callable<Level>() {
+                            @Override
+                            public Level call() {
+                                return reader.band(fromY, Math.min(fromY + LEVEL_BAND_ROWS, height));
                             }
-                            set(new Position(x, y)).create(mapping.get(ch));
-                        }
-                        x++;
+                        }));
+                        next += LEVEL_BAND_ROWS;
                     }
+                    place(bands.remove().get(), y);
                 }
-                y++;
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Failed to load level", e);
+            } finally {
+                pool.shutdownNow();
             }
         }
         applyOperations();
     }
 
+    private void reset(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        this.cells.close();
+        this.cells = new Grid<>(width, height);
+        this.hash = 0L;
+        if (pageFile != null) {
+            try {
+                this.cells.setPaging(pageFile, new UnitPager());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        this.typeIndex.clear();
+        this.nameIndex.clear();
+        this.ticking.clear();
+        this.awake.clear();
+        this.pagedIn.clear();
+        this.frameCells = new String[width * height];
+        this.frameRows = new String[height];
+        this.dirtyCells = new boolean[width * height];
+        this.dirtyRows = new boolean[height];
+        Arrays.fill(dirtyCells, true);
+        Arrays.fill(dirtyRows, true);
+        this.frame = null;
+        this.changedCells = new int[0];
+        this.changedCount = 0;
+        this.changedMarks = new boolean[width * height];
+        this.regions = null;
+        //chunks are in full detail until the next tick updates them.
+        this.details = new Detail[cells.getChunksX() * cells.getChunksY()];
+        this.lags = new int[details.length];
+        this.catchingUp = new boolean[details.length];
+        Arrays.fill(details, Detail.FULL);
+        time.setGate(detailNear > 0 ? detailGate : null);
+        time.setDispatching(true);
+    }
+
+    /**
+     * Saves the world into memory, must be called on the game thread between ticks.
+     * Paged chunks are paged in first.
+     */
+    public Snapshot snapshot() {
+        cells.pageInAll();
+        indexPagedIn();
+        try (final Snapshot.Output out = new Snapshot.Output()) {
+            out.writeInt(Snapshot.MAGIC);
+            out.writeInt(Snapshot.VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(time.getClock());
+            //index order first, it is the order units are ticked in.
+            final Set<MapUnit> indexed = fromNullable(typeIndex.get(MapUnit.class)).or(Collections.<MapUnit>emptySet());
+            out.writeInt(indexed.size());
+            for (final MapUnit unit : indexed) {
+                out.writeUnit(unit);
+            }
+            //then order of units within cells.
+            int placed = 0;
+            for (final MapUnit ignored : cells) {
+                placed++;
+            }
+            out.writeInt(placed);
+            for (final MapUnit unit : cells) {
+                out.writeUnit(unit);
+            }
+            writeUnits(out, awake);
+            writeUnits(out, lastFalls);
+            writeUnits(out, removes);
+            out.writeInt(operations.size);
+            for (int i = 0; i < operations.size; i++) {
+                out.writeUnit(operations.units[i]);
+                out.writeInt(operations.codes[i]);
+            }
+            return out.toSnapshot();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeUnits(final Snapshot.Output out, final Collection<MapUnit> units) throws IOException {
+        out.writeInt(units.size());
+        for (final MapUnit unit : units) {
+            out.writeUnit(unit);
+        }
+    }
+
+    /**
+     * Replaces the world with a saved one and sets the game clock to the tick of the snapshot,
+     * must be called on the game thread between ticks. Schedules of units are registered again
+     * by {@link MapUnit#onPlace()}, see {@link GameTime#reset(int)}.
+     */
+    public void restore(final Snapshot snapshot) throws IOException {
+        try (final Snapshot.Input in = new Snapshot.Input(snapshot, this)) {
+            if (in.readInt() != Snapshot.MAGIC) {
+                throw new IOException("Not a snapshot");
+            }
+            final int version = in.readInt();
+            if (version != Snapshot.VERSION) {
+                throw new IOException("Unsupported snapshot version: " + version);
+            }
+            reset(in.readInt(), in.readInt());
+            time.reset(in.readInt());
+            lastFalls.clear();
+            removes.clear();
+            operations.clear();
+            draining.clear();
+            final List<MapUnit> indexed = new ArrayList<>();
+            for (int count = in.readInt(); count > 0; count--) {
+                final MapUnit unit = in.readUnit();
+                index(unit);
+                indexed.add(unit);
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                final MapUnit unit = in.readUnit();
+                cells.add(unit.getPosition().x, unit.getPosition().y, unit);
+                hashIn(unit, unit.getPosition().x, unit.getPosition().y);
+            }
+            readUnits(in, awake);
+            readUnits(in, lastFalls);
+            readUnits(in, removes);
+            for (int count = in.readInt(); count > 0; count--) {
+                final MapUnit unit = in.readUnit();
+                operations.add(unit, in.readInt());
+            }
+            for (final MapUnit unit : indexed) {
+                unit.onPlace();
+            }
+        }
+    }
+
+    private static void readUnits(final Snapshot.Input in, final Collection<MapUnit> units) throws IOException {
+        for (int count = in.readInt(); count > 0; count--) {
+            units.add(in.readUnit());
+        }
+    }
+
+    /**
+     * Creates a restored unit, it is neither placed nor indexed.
+     */
+    MapUnit newUnit(final Class<? extends MapUnit> type, @Nullable final String name, final Position position) {
+        final Position pendingPosition = positionProvider.get();
+        final String pendingName = nameProvider.get();
+        positionProvider.set(position);
+        nameProvider.set(name);
+        try {
+            return units.create(type);
+        } finally {
+            positionProvider.set(pendingPosition);
+            nameProvider.set(pendingName);
+        }
+    }
+
+    /**
+     * Creates units of the level with its bottom row at given row of the map.
+     */
+    private void place(final Level level, final int originY) {
+        int named = 0;
+        for (int y = 0; y < level.getHeight(); y++) {
+            for (int x = 0; x < level.getWidth(); x++) {
+                final Class<? extends MapUnit> type = level.getType(x, y);
+                if (type != null) {
+                    if (named < level.getNameCount() && level.getNamedCell(named) == y * level.getWidth() + x) {
+                        setName(level.getName(named++));
+                    }
+                    set(new Position(x, originY + y)).create(type);
+                }
+            }
+        }
+    }
+
     public void debug() throws IOException {
         final StringBuilder html = new StringBuilder("<html>\n" +
                 "<head>\n" +
@@ -406,7 +1444,7 @@ public class GameMap {
                 "<pre>\n");
         for (int y = height - 1; y >= 0; y--) {
             for (int x = 0; x < width; x++) {
-                final List<MapUnit> unitList = map.get(new Position(x, y));
+                final List<MapUnit> unitList = cells.get(x, y);
                 final MapUnit.View unitView = new MapUnit.View(null, null, null, false);
                 for (final MapUnit unit : unitList) {
                     unitView.join(unit.render());
@@ -430,8 +1468,25 @@ public class GameMap {
 
     }
 
-    public synchronized void addAction(final Runnable action) {
-        this.actions.add(action);
+    /**
+     * Runs action on the game thread at the start of the next tick, may be called from any thread.
+     */
+    public void addAction(final Runnable action) {
+        defaultInput.offer(action);
+    }
+
+    /**
+     * @return own lane for actions of a single producer, see {@link InputQueue#newLane(int, int, InputQueue.Overflow)}.
+     */
+    public InputQueue.Lane<Runnable> newInputLane(final int capacity, final int quantum, final InputQueue.Overflow overflow) {
+        return input.newLane(capacity, quantum, overflow);
+    }
+
+    /**
+     * Simulation level of detail of a chunk, by its distance to the closest player.
+     */
+    public enum Detail {
+        FULL, REDUCED, FROZEN
     }
 
     public static class Position {
@@ -443,6 +1498,14 @@ public class GameMap {
             this.y = y;
         }
 
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
         public Position translate(final Direction direction) {
             return new Position(x + direction.getX(), y + direction.getY());
         }
@@ -482,47 +1545,60 @@ public class GameMap {
         }
     }
 
+    /**
+     * Cursors are per thread, so units can be created off the game thread.
+     */
     @Singleton
     protected static class PositionProvider implements Provider<Position> {
-        private Position cursor = new Position(10, 10);
+        private final ThreadLocal<Position> cursor = new ThreadLocal<Position>() {
+            @Override
+            protected Position initialValue() {
+                return new Position(10, 10);
+            }
+        };
 
         @Override
         public Position get() {
-            return cursor;
+            return cursor.get();
         }
 
         public void set(final Position position) {
-            this.cursor = checkNotNull(position);
+            this.cursor.set(checkNotNull(position));
         }
     }
 
     @Singleton
     protected static class DirectionProvider implements Provider<Direction> {
-        private Direction direction = Direction.Right;
+        private final ThreadLocal<Direction> direction = new ThreadLocal<Direction>() {
+            @Override
+            protected Direction initialValue() {
+                return Direction.Right;
+            }
+        };
 
         @Override
         public Direction get() {
-            return direction;
+            return direction.get();
         }
 
         public void set(final Direction direction) {
-            this.direction = checkNotNull(direction);
+            this.direction.set(checkNotNull(direction));
         }
     }
 
     @Singleton
     protected static class NameProvider implements Provider<String> {
-        private String name;
+        private final ThreadLocal<String> name = new ThreadLocal<>();
 
         @Override
         public String get() {
-            final String result = name;
-            name = null;
+            final String result = name.get();
+            name.remove();
             return result;
         }
 
         public void set(final String name) {
-            this.name = name;
+            this.name.set(name);
         }
     }
 
@@ -537,6 +1613,15 @@ public class GameMap {
         @SuppressWarnings("NullableProblems")
         @Named("name")
         private String name;
+        /**
+         * Key of the unit in the world hash while it is placed, see {@link GameMap#getHash()}.
+         */
+        private long hashKey = 0L;
+        private boolean hashed = false;
+        /**
+         * Position of the unit in index order, units and their periodic callbacks run in that order.
+         */
+        private long order = 0L;
 
         @Nullable
         public String getName() {
@@ -567,11 +1652,26 @@ public class GameMap {
             return false;
         }
 
+        /**
+         * @return true for static units, which can be restored from their type and name only.
+         * Chunks made of such units are paged out when no player is around.
+         */
+        public boolean isPageable() {
+            return false;
+        }
+
 
         public void onTick() {
 
         }
 
+        /**
+         * Called when unit is placed on the map, a good place to register {@link GameTime#periodic} tasks.
+         */
+        public void onPlace() {
+
+        }
+
         public boolean isCollideBack() {
             return false;
         }
@@ -583,6 +1683,34 @@ public class GameMap {
         public void onMove() {
         }
 
+        /**
+         * @return state of the unit which counts in the world hash, units call {@link GameMap#rehash(MapUnit)}
+         * once it is changed.
+         */
+        public int getHashState() {
+            return 0;
+        }
+
+        /**
+         * Writes own state of the unit into a snapshot, type, name and position are written by the map.
+         */
+        public void writeState(final Snapshot.Output out) throws IOException {
+        }
+
+        /**
+         * Reads state written by {@link #writeState(Snapshot.Output)}, before the unit is placed.
+         */
+        public void readState(final Snapshot.Input in) throws IOException {
+        }
+
+        /**
+         * @return true if view changes by itself, checked after each {@link #onTick()}.
+         * Views of other units are redrawn only when their cell is changed.
+         */
+        public boolean isAnimated() {
+            return false;
+        }
+
         public abstract View render();
 
         public interface Movable {
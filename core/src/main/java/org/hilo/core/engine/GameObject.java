@@ -1,6 +1,7 @@
 package org.hilo.core.engine;
 
 import com.google.inject.Singleton;
+import org.hilo.core.utils.ListProxy;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -12,10 +13,24 @@ public abstract class GameObject {
     private static final AtomicInteger sequence = new AtomicInteger();
     private final int hash = sequence.incrementAndGet();
     public interface Usable {
+        ListProxy.Test<Usable, Actor> USE = new ListProxy.Test<Usable, Actor>(Usable.class) {
+            @Override
+            public boolean call(final Usable target, final Actor actor) {
+                return target.use(actor);
+            }
+        };
+
         boolean use(Actor actor);
     }
 
     public interface Damageable {
+        ListProxy.IntCall<Damageable> DAMAGE = new ListProxy.IntCall<Damageable>(Damageable.class) {
+            @Override
+            public void call(final Damageable target, final int damage) {
+                target.damage(damage);
+            }
+        };
+
         void damage(final int damage);
     }
 
@@ -2,8 +2,17 @@ package org.hilo.core.engine;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.primitives.Ints;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import org.fusesource.jansi.Ansi;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * @author dmitry.mamonov
@@ -12,33 +21,174 @@ import com.google.inject.Singleton;
 @Singleton
 public class GameRenderer {
     public static final String LINE_BREAK = "\r\n";
+    /**
+     * Clients which missed more frames than this are repainted with a keyframe.
+     */
+    public static final int MAX_DELTA_GAP = 16;
+    private static final String KEYFRAME_PREFIX = Ansi.ansi().eraseScreen(Ansi.Erase.ALL).cursor(0, 0).toString();
+    private static final String[] NO_LINES = new String[0];
+    private static final int[] NO_CELLS = new int[0];
+
     @Inject
     protected GameMap map;
     @Inject
     protected GameTime time;
 
     protected volatile View lastView = new View("", 0);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Notified on the game thread right after a view is published, must not block.
+     */
+    public interface Listener {
+        void onView(View view);
+    }
 
     public static class View {
         private final String content;
         private final int version;
+        private final int width;
+        private final int height;
+        /**
+         * Cells changed since the previous view, by ascending screen index, and their content.
+         */
+        private final int[] changed;
+        private final String[] changedCells;
+        private final String[] hud;
+        /**
+         * View published before this one, links are cut {@value #MAX_DELTA_GAP} views back.
+         */
+        @Nullable
+        private volatile View previous;
+        /**
+         * Encoded once per version and shared by all sessions: full repaint, encoded on the first request,
+         * and delta from the view published before.
+         */
+        private volatile ByteBuffer keyframe = null;
+        @Nullable
+        private final ByteBuffer delta;
 
         public View(final String content, final int version) {
-            this.content = content;
-            this.version = version;
+            this(content, version, 0, 0, NO_CELLS, NO_LINES, NO_LINES, null);
         }
 
-        public String getContent() {
-            return content;
+        /**
+         * @param changed      ascending screen indices {@code row * width + x} of cells changed since {@code previous}.
+         * @param changedCells rendered content of changed cells.
+         * @param hud          lines printed below the map.
+         * @param previous     view published before this one, delta from it is encoded eagerly.
+         */
+        public View(final String content, final int version, final int width, final int height,
+                    final int[] changed, final String[] changedCells, final String[] hud, @Nullable final View previous) {
+            this.content = content;
+            this.version = version;
+            this.width = width;
+            this.height = height;
+            this.changed = changed;
+            this.changedCells = changedCells;
+            this.hud = hud;
+            this.previous = previous;
+            final String deltaContent = previous != null ? delta(previous) : null;
+            if (deltaContent != null && deltaContent.length() < content.length()) {
+                this.delta = ByteBuffer.wrap(deltaContent.getBytes(Charsets.UTF_8)).asReadOnlyBuffer();
+            } else {
+                this.delta = null;
+            }
         }
 
-        public byte[] getContentBytes() {
-            return content.getBytes(Charsets.UTF_8);
+        /**
+         * @return read-only view of encoded full repaint, shared by all callers.
+         */
+        public ByteBuffer getKeyframe() {
+            ByteBuffer encoded = keyframe;
+            if (encoded == null) {
+                //racing sessions may encode it twice, both copies are equal.
+                encoded = ByteBuffer.wrap((KEYFRAME_PREFIX + content).getBytes(Charsets.UTF_8)).asReadOnlyBuffer();
+                keyframe = encoded;
+            }
+            return encoded.duplicate();
         }
 
         public int getVersion() {
             return version;
         }
+
+        /**
+         * @return bytes which bring a client showing {@code previous} view to this one:
+         * cursor-addressed delta when possible, full repaint otherwise.
+         * Clients which are one view behind get the shared delta, lagging clients get changes of the views they missed.
+         */
+        public ByteBuffer getUpdate(@Nullable final View previous) {
+            if (previous != null && version - previous.version <= MAX_DELTA_GAP) {
+                if (previous == this.previous) {
+                    if (delta != null) {
+                        return delta.duplicate();
+                    }
+                } else {
+                    final String lagDelta = delta(previous);
+                    if (lagDelta != null && lagDelta.length() < content.length()) {
+                        return ByteBuffer.wrap(lagDelta.getBytes(Charsets.UTF_8));
+                    }
+                }
+            }
+            return getKeyframe();
+        }
+
+        /**
+         * @return cursor moves and changed runs of cells and lines, null if previous view has different layout
+         * or is too far behind.
+         */
+        @Nullable
+        public String delta(final View previous) {
+            if (width == 0 || previous.width != width || previous.height != height) {
+                return null;
+            }
+            final Ansi ansi = Ansi.ansi();
+            if (previous == this.previous) {
+                cells(ansi, changed, changedCells);
+            } else {
+                //changes of missed views, the latest content of each cell wins.
+                final SortedMap<Integer, String> cells = new TreeMap<>();
+                for (View view = this; view != previous; view = view.previous) {
+                    if (view == null || view.width != width || view.height != height) {
+                        return null;
+                    }
+                    for (int i = 0; i < view.changed.length; i++) {
+                        if (!cells.containsKey(view.changed[i])) {
+                            cells.put(view.changed[i], view.changedCells[i]);
+                        }
+                    }
+                }
+                cells(ansi, Ints.toArray(cells.keySet()), cells.values().toArray(NO_LINES));
+            }
+            for (int line = 0; line < Math.max(hud.length, previous.hud.length); line++) {
+                final String current = line < hud.length ? hud[line] : "";
+                if (line >= previous.hud.length || !current.equals(previous.hud[line])) {
+                    ansi.cursor(height + line + 1, 1).a(current).eraseLine(Ansi.Erase.FORWARD);
+                }
+            }
+            return ansi.toString();
+        }
+
+        /**
+         * Writes runs of adjacent cells of a row after a single cursor move.
+         */
+        private void cells(final Ansi ansi, final int[] indices, final String[] content) {
+            for (int i = 0; i < indices.length; i++) {
+                final int index = indices[i];
+                if (i == 0 || index != indices[i - 1] + 1 || index % width == 0) {
+                    ansi.cursor(index / width + 1, index % width + 1);
+                }
+                ansi.a(content[i]);
+            }
+        }
+
+        /**
+         * Drops the link to the view before, so views behind it can be collected.
+         */
+        private void unlink() {
+            previous = null;
+        }
     }
 
 
@@ -47,12 +197,42 @@ public class GameRenderer {
     }
 
     public void render() {
-        lastView = new View(
-                map.render() +
-                        Joiner.on("\r\n").join(map.list(Actor.Player.class)) + "\r\n" +
-                        "Game Time: " + time.getClock(),
-                time.getClock()
+        final String hud = Joiner.on("\r\n").join(map.list(Actor.Player.class)) + "\r\n" +
+                "Game Time: " + time.getClock();
+        final int[] changed = map.takeChangedCells();
+        final String[] changedCells = new String[changed.length];
+        for (int i = 0; i < changed.length; i++) {
+            changedCells[i] = map.getRenderedCell(changed[i]);
+        }
+        final View view = new View(
+                map.render() + hud,
+                time.getClock(),
+                map.getWidth(),
+                map.getHeight(),
+                changed,
+                changedCells,
+                hud.split(LINE_BREAK, -1),
+                lastView
         );
+        View last = view;
+        for (int gap = 0; gap < MAX_DELTA_GAP && last != null; gap++) {
+            last = last.previous;
+        }
+        if (last != null) {
+            last.unlink();
+        }
+        lastView = view;
+        for (final Listener listener : listeners) {
+            listener.onView(view);
+        }
+    }
+
+    public void subscribe(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(final Listener listener) {
+        listeners.remove(listener);
     }
 
 
@@ -1,28 +1,65 @@
 package org.hilo.core.engine;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
 import com.google.inject.Singleton;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
-* @author dmitry.mamonov
-*         Created: 10/31/13 10:53 PM
-*/
+ * Game clock with a hierarchical timing wheel for scheduled callbacks.
+ * <p/>
+ * Four wheels of 64 slots cover 64, 64^2, 64^3 and 64^4 ticks ahead, later schedules wait in an overflow slot.
+ * Insertion and cancellation are O(1), each schedule is cascaded to a finer wheel at most once per level
+ * and its callback runs exactly at its due tick. Periodic schedules are re-linked after each run, so units
+ * can be invoked only on the ticks they act instead of polling the clock from {@link GameMap.MapUnit#onTick()}.
+ *
+ * @author dmitry.mamonov
+ *         Created: 10/31/13 10:53 PM
+ */
 @Singleton
 public final class GameTime {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEEL_LEVELS = 4;
+
     public int getClock() {
         return clock;
     }
 
-    protected static class Schedule {
-        private final int when;
+    /**
+     * Decides whether a schedule of an owner runs on the current tick, skipped runs are not repeated.
+     */
+    public interface Gate {
+        boolean isActive(Object owner, Schedule schedule);
+    }
+
+    /**
+     * Handle of a scheduled callback, linked into a slot of the timing wheel.
+     */
+    public static final class Schedule {
+        private int when;
+        private final int period;
         private final Runnable callback;
+        @Nullable
+        private final Object owner;
+        private boolean cancelled = false;
+        private Schedule previous = this;
+        private Schedule next = this;
+
+        private Schedule(final int when, final Runnable callback) {
+            this(when, 0, null, callback);
+        }
 
-        public Schedule(final int when, final Runnable callback) {
+        private Schedule(final int when, final int period, @Nullable final Object owner, final Runnable callback) {
             this.when = when;
+            this.period = period;
+            this.owner = owner;
             this.callback = callback;
         }
 
@@ -33,31 +70,318 @@ public final class GameTime {
         public Runnable getCallback() {
             return callback;
         }
+
+        @Nullable
+        public Object getOwner() {
+            return owner;
+        }
+
+        /**
+         * @return ticks between runs, zero for one-shot schedules.
+         */
+        public int getPeriod() {
+            return period;
+        }
+
+        public boolean isPending() {
+            return next != this;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return true if callback was pending or periodic and will not be run any more.
+         */
+        public boolean cancel() {
+            if (cancelled || (!isPending() && period == 0)) {
+                return false;
+            }
+            cancelled = true;
+            unlink();
+            return true;
+        }
+
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+
+        private void append(final Schedule schedule) {
+            schedule.previous = previous;
+            schedule.next = this;
+            previous.next = schedule;
+            previous = schedule;
+        }
     }
 
-    private final List<Schedule> schedules = new ArrayList<>();
+    private final Schedule[][] wheels = new Schedule[WHEEL_LEVELS][WHEEL_SIZE];
+    private final Schedule overflow = new Schedule(Integer.MAX_VALUE, null);
+    private final Schedule due = new Schedule(Integer.MAX_VALUE, null);
+    private final Map<Object, List<Schedule>> owned = new HashMap<>();
     private final List<Runnable> subscribers = new ArrayList<>();
+    /**
+     * Schedules created by a thread with a deferral list wait there until {@link #commit(List)}.
+     */
+    private final ThreadLocal<List<Schedule>> deferred = new ThreadLocal<>();
+    @Nullable
+    private Gate gate = null;
+    /**
+     * Due schedules of owners wait in the list for {@link #takeDue()} instead of running in {@link #tick()}.
+     */
+    private boolean dispatching = false;
+    private final List<Schedule> dispatched = new ArrayList<>();
+    /**
+     * Clock of the last {@link #takeDue()}, due schedules of the current tick are collected until then.
+     */
+    private int taken = -1;
     private int clock = 0;
 
+    {
+        for (final Schedule[] wheel : wheels) {
+            for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                wheel[slot] = new Schedule(Integer.MAX_VALUE, null);
+            }
+        }
+    }
+
     public void tick() {
         clock = getClock() + 1;
-        Iterables.removeIf(schedules, new Predicate<Schedule>() {
-            @Override
-            public boolean apply(final Schedule schedule) {
-                if (schedule.getWhen() >= getClock()) {
+        if ((clock & WHEEL_MASK) == 0) {
+            cascade(1);
+        }
+        drain(wheels[0][clock & WHEEL_MASK]);
+        while (due.isPending()) {
+            final Schedule schedule = due.next;
+            schedule.unlink();
+            if (schedule.owner == null) {
+                schedule.getCallback().run();
+            } else if (gate == null || gate.isActive(schedule.owner, schedule)) {
+                if (dispatching) {
+                    dispatched.add(schedule);
+                } else {
                     schedule.getCallback().run();
-                    return true;
                 }
-                return false;
             }
-        });
+            if (schedule.period > 0 && !schedule.cancelled) {
+                schedule.when += schedule.period;
+                insert(schedule);
+            }
+        }
         for(final Runnable sub:subscribers){
             sub.run();
         }
     }
 
-    public void scheduled(final int ticks, final Runnable callback) {
-        schedules.add(new Schedule(getClock() + ticks, callback));
+    /**
+     * Moves schedules from the current slot of given wheel to finer wheels,
+     * coarser wheels are cascaded first when they turn over as well.
+     */
+    private void cascade(final int level) {
+        if (level >= WHEEL_LEVELS) {
+            reinsert(overflow);
+            return;
+        }
+        final int slot = (clock >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+        if (slot == 0) {
+            cascade(level + 1);
+        }
+        reinsert(wheels[level][slot]);
+    }
+
+    private void reinsert(final Schedule slot) {
+        final Schedule pending = new Schedule(Integer.MAX_VALUE, null);
+        drain(slot, pending);
+        while (pending.isPending()) {
+            final Schedule schedule = pending.next;
+            schedule.unlink();
+            insert(schedule);
+        }
+    }
+
+    private void drain(final Schedule slot) {
+        drain(slot, due);
+    }
+
+    private static void drain(final Schedule slot, final Schedule target) {
+        while (slot.isPending()) {
+            final Schedule schedule = slot.next;
+            schedule.unlink();
+            target.append(schedule);
+        }
+    }
+
+    private void insert(final Schedule schedule) {
+        final long delta = (long) schedule.getWhen() - clock;
+        if (delta <= 0) {
+            due.append(schedule);
+            return;
+        }
+        for (int level = 0; level < WHEEL_LEVELS; level++) {
+            if (delta < 1L << (WHEEL_BITS * (level + 1))) {
+                wheels[level][(schedule.getWhen() >>> (WHEEL_BITS * level)) & WHEEL_MASK].append(schedule);
+                return;
+            }
+        }
+        overflow.append(schedule);
+    }
+
+    /**
+     * @param ticks delay, callback runs exactly at tick {@code getClock() + ticks}, but not earlier than next tick.
+     */
+    public Schedule scheduled(final int ticks, final Runnable callback) {
+        final Schedule schedule = new Schedule(getClock() + Math.max(ticks, 1), callback);
+        link(schedule);
+        return schedule;
+    }
+
+    /**
+     * Runs callback on every tick where {@code getClock() % period == phase}, starting from the next such tick.
+     * Schedules of owners start on the current tick already if it matches and its due schedules are not taken yet,
+     * see {@link #takeDue()}.
+     *
+     * @param owner schedule is cancelled by {@link #release(Object)} of the owner,
+     *              map units are released when they are removed from {@link GameMap}.
+     */
+    public Schedule periodic(final int period, final int phase, @Nullable final Object owner, final Runnable callback) {
+        checkArgument(period > 0, "Period must be positive: %s", period);
+        final int offset = ((phase - getClock() - 1) % period + period) % period;
+        final Schedule schedule = new Schedule(getClock() + 1 + offset, period, owner, callback);
+        if (owner != null && isDispatchOpen() && offset == period - 1) {
+            schedule.when = getClock();
+        }
+        link(schedule);
+        return schedule;
+    }
+
+    private void link(final Schedule schedule) {
+        final List<Schedule> pending = deferred.get();
+        if (pending != null) {
+            pending.add(schedule);
+            return;
+        }
+        if (schedule.when == getClock() && schedule.owner != null && isDispatchOpen()) {
+            if (gate == null || gate.isActive(schedule.owner, schedule)) {
+                dispatched.add(schedule);
+            }
+            schedule.when += schedule.period;
+        }
+        insert(schedule);
+        if (schedule.owner != null) {
+            List<Schedule> ownedSchedules = owned.get(schedule.owner);
+            if (ownedSchedules == null) {
+                ownedSchedules = new ArrayList<>(1);
+                owned.put(schedule.owner, ownedSchedules);
+            }
+            ownedSchedules.add(schedule);
+        }
+    }
+
+    /**
+     * Collects schedules created by the current thread into the list instead of the wheel,
+     * so they can be created off the game thread while it waits. Null stops deferring.
+     */
+    public void defer(@Nullable final List<Schedule> pending) {
+        if (pending != null) {
+            deferred.set(pending);
+        } else {
+            deferred.remove();
+        }
+    }
+
+    /**
+     * Links deferred schedules into the wheel in list order, schedules cancelled meanwhile are skipped.
+     */
+    public void commit(final List<Schedule> pending) {
+        for (final Schedule schedule : pending) {
+            if (!schedule.cancelled) {
+                link(schedule);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Sets the clock for a restored world: one-shot and owned schedules belong to the replaced world and are dropped,
+     * periodic schedules without an owner keep their period and phase.
+     */
+    public void reset(final int clock) {
+        final Schedule kept = new Schedule(Integer.MAX_VALUE, null);
+        for (final Schedule[] wheel : wheels) {
+            for (final Schedule slot : wheel) {
+                drain(slot, kept);
+            }
+        }
+        drain(overflow, kept);
+        drain(due, kept);
+        owned.clear();
+        dispatched.clear();
+        this.clock = clock;
+        //the restored world is saved between ticks, its current tick is over.
+        this.taken = clock;
+        while (kept.isPending()) {
+            final Schedule schedule = kept.next;
+            schedule.unlink();
+            if (schedule.period > 0 && schedule.owner == null) {
+                final int phase = (schedule.when % schedule.period + schedule.period) % schedule.period;
+                schedule.when = clock + 1 + ((phase - clock - 1) % schedule.period + schedule.period) % schedule.period;
+                insert(schedule);
+            }
+        }
+    }
+
+    /**
+     * @return true if the owner has periodic schedules.
+     */
+    public boolean isOwner(final Object owner) {
+        return owned.containsKey(owner);
+    }
+
+    /**
+     * Cancels all periodic schedules of the owner.
+     */
+    public void release(final Object owner) {
+        final List<Schedule> ownedSchedules = owned.remove(owner);
+        if (ownedSchedules != null) {
+            for (final Schedule schedule : ownedSchedules) {
+                schedule.cancel();
+            }
+        }
+    }
+
+    /**
+     * @param gate filter of owned schedules, null runs all of them.
+     */
+    public void setGate(@Nullable final Gate gate) {
+        this.gate = gate;
+    }
+
+    /**
+     * @param dispatching true collects due schedules of owners for {@link #takeDue()} instead of running them
+     *                    in {@link #tick()}, so they can run later in the tick, e.g. in the order of their owners.
+     */
+    public void setDispatching(final boolean dispatching) {
+        this.dispatching = dispatching;
+        this.dispatched.clear();
+    }
+
+    private boolean isDispatchOpen() {
+        return dispatching && taken != clock;
+    }
+
+    /**
+     * Due schedules are already linked for their next run, callbacks of schedules cancelled meanwhile must be skipped.
+     *
+     * @return schedules of owners due on the current tick in due order, later schedules go to the next tick.
+     */
+    public List<Schedule> takeDue() {
+        final List<Schedule> due = new ArrayList<>(dispatched);
+        dispatched.clear();
+        taken = clock;
+        return due;
     }
 
     public void subscribe(final Runnable subscriber) {
@@ -0,0 +1,461 @@
+package org.hilo.core.engine;
+
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.LimitInputStream;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.hilo.core.utils.Recorder;
+import org.hilo.core.utils.Rnd;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Player commands applied on the game thread, journaled by tick while recording.
+ * <p/>
+ * Journal file is a sequence of segments, each one starts with a keyframe: the world snapshot, random state
+ * and world hash, followed by a {@link Recorder} tape of {@link Tape} calls up to the next keyframe. An index
+ * of keyframes ends the file. Simulation depends only on them, so {@link Replay} reproduces the recorded run
+ * exactly, checks it against the world hash of each keyframe it passes and seeks to any tick by replaying
+ * from the nearest keyframe.
+ */
+@Singleton
+public class Journal {
+    private static final int MAGIC = 0x48494C4A; //"HILJ"
+    private static final int VERSION = 6;
+    private static final int INDEX_MAGIC = 0x48494C58; //"HILX"
+    private static final int HEADER_SIZE = 8;
+    /**
+     * Clock, random state, world hash, snapshot length and tape length.
+     */
+    private static final int SEGMENT_HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+
+    /**
+     * Journal calls: commands of a tick follow its {@link #tick(int)} mark.
+     */
+    public interface Tape {
+        void tick(int clock);
+
+        void right();
+
+        void left();
+
+        void jump();
+
+        void descend();
+
+        void act();
+
+        void useTool();
+
+        void changeTool();
+
+        /**
+         * Marks the last simulated tick of the journal.
+         */
+        void end(int clock);
+    }
+
+    /**
+     * Player commands.
+     */
+    public enum Command {
+        RIGHT {
+            @Override
+            void apply(final Tape tape) {
+                tape.right();
+            }
+        },
+        LEFT {
+            @Override
+            void apply(final Tape tape) {
+                tape.left();
+            }
+        },
+        JUMP {
+            @Override
+            void apply(final Tape tape) {
+                tape.jump();
+            }
+        },
+        DESCEND {
+            @Override
+            void apply(final Tape tape) {
+                tape.descend();
+            }
+        },
+        CHANGE_TOOL {
+            @Override
+            void apply(final Tape tape) {
+                tape.changeTool();
+            }
+        },
+        ACT {
+            @Override
+            void apply(final Tape tape) {
+                tape.act();
+            }
+        },
+        USE_TOOL {
+            @Override
+            void apply(final Tape tape) {
+                tape.useTool();
+            }
+        };
+
+        abstract void apply(Tape tape);
+    }
+
+    @Inject
+    protected GameMap map;
+    @Inject
+    protected GameTime time;
+    @Inject
+    protected Rnd rnd;
+
+    /**
+     * Ticks between keyframes of a journal.
+     */
+    protected int keyframePeriod = Integer.getInteger("hilo.journal.keyframePeriod", 1000);
+
+    @Nullable
+    private FileChannel channel = null;
+    @Nullable
+    private CountingOutputStream written = null;
+    @Nullable
+    private DataOutputStream out = null;
+    private final List<Keyframe> keyframes = new ArrayList<>();
+    private long tapeLengthOffset = 0L;
+    @Nullable
+    private Recorder.Output tapeOut = null;
+    @Nullable
+    private Tape recorder = null;
+    private int recordedTick = -1;
+
+    private final Tape commands = new Tape() {
+        @Override
+        public void tick(final int clock) {
+            //commands are applied on the current tick.
+        }
+
+        @Override
+        public void right() {
+            final Tape tape = tape();
+            if (tape != null) {
+                tape.right();
+            }
+            final Actor.Player player = player();
+            if (player != null) {
+                player.right();
+            }
+        }
+
+        @Override
+        public void left() {
+            final Tape tape = tape();
+            if (tape != null) {
+                tape.left();
+            }
+            final Actor.Player player = player();
+            if (player != null) {
+                player.left();
+            }
+        }
+
+        @Override
+        public void jump() {
+            final Tape tape = tape();
+            if (tape != null) {
+                tape.jump();
+            }
+            final Actor.Player player = player();
+            if (player != null) {
+                player.jump();
+            }
+        }
+
+        @Override
+        public void descend() {
+            final Tape tape = tape();
+            if (tape != null) {
+                tape.descend();
+            }
+            final Actor.Player player = player();
+            if (player != null) {
+                player.descend();
+            }
+        }
+
+        @Override
+        public void act() {
+            final Tape tape = tape();
+            if (tape != null) {
+                tape.act();
+            }
+            final Actor.Player player = player();
+            if (player != null) {
+                player.act();
+            }
+        }
+
+        @Override
+        public void useTool() {
+            final Tape tape = tape();
+            if (tape != null) {
+                tape.useTool();
+            }
+            final Actor.Player player = player();
+            if (player != null) {
+                player.useTool();
+            }
+        }
+
+        @Override
+        public void changeTool() {
+            final Tape tape = tape();
+            if (tape != null) {
+                tape.changeTool();
+            }
+            final Actor.Player player = player();
+            if (player != null) {
+                player.changeTool();
+            }
+        }
+
+        @Override
+        public void end(final int clock) {
+            //not a command.
+        }
+    };
+
+    private final Map<Command, Runnable> actions = new EnumMap<>(Command.class);
+
+    {
+        for (final Command command : Command.values()) {
+            actions.put(command, new Runnable() {
+                @Override
+                public void run() {
+                    command.apply(commands);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return action applying the command to the first player, see {@link GameMap#addAction(Runnable)}.
+     */
+    public Runnable action(final Command command) {
+        return actions.get(command);
+    }
+
+    /**
+     * @return tape the command is journaled to, null if not recording.
+     */
+    @Nullable
+    private Tape tape() {
+        final Tape tape = recorder;
+        if (tape != null && time.getClock() != recordedTick) {
+            recordedTick = time.getClock();
+            tape.tick(recordedTick);
+        }
+        return tape;
+    }
+
+    /**
+     * @return player commands apply to, resolved on the game thread as unit index is not thread safe.
+     */
+    @Nullable
+    private Actor.Player player() {
+        return Iterables.getFirst(map.<Actor.Player>list(Actor.Player.class), null);
+    }
+
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
+    /**
+     * Starts a journal from the current state of the world, must be called on the game thread between ticks.
+     */
+    public void start(final File file) throws IOException {
+        stop();
+        final FileOutputStream stream = new FileOutputStream(file);
+        this.channel = stream.getChannel();
+        this.written = new CountingOutputStream(new BufferedOutputStream(stream));
+        this.out = new DataOutputStream(written);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        keyframe();
+    }
+
+    /**
+     * Called on the game thread after each tick: writes a keyframe once per period.
+     * Commands are written by the tape in blocks, so a crash loses the commands of the last block at most.
+     */
+    public void onTick() throws IOException {
+        if (out != null && time.getClock() - keyframes.get(keyframes.size() - 1).clock >= keyframePeriod) {
+            closeTape();
+            keyframe();
+        }
+    }
+
+    /**
+     * Marks the current tick as the last one, writes the index of keyframes and closes the journal.
+     */
+    public void stop() throws IOException {
+        if (recorder != null && out != null) {
+            recorder.end(time.getClock());
+            closeTape();
+            final long indexOffset = written.getCount();
+            out.writeInt(keyframes.size());
+            for (final Keyframe keyframe : keyframes) {
+                out.writeInt(keyframe.clock);
+                out.writeLong(keyframe.offset);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(INDEX_MAGIC);
+            out.close();
+            recorder = null;
+            tapeOut = null;
+            out = null;
+            written = null;
+            channel = null;
+            keyframes.clear();
+        }
+    }
+
+    /**
+     * Starts a segment: keyframe of the world followed by a tape of commands, tape length is written when it is closed.
+     */
+    private void keyframe() throws IOException {
+        final Snapshot snapshot = map.snapshot();
+        keyframes.add(new Keyframe(time.getClock(), written.getCount()));
+        out.writeInt(time.getClock());
+        out.writeLong(rnd.getState());
+        out.writeLong(map.getHash());
+        out.writeInt(snapshot.size());
+        out.write(snapshot.getData());
+        tapeLengthOffset = written.getCount();
+        out.writeInt(-1);
+        tapeOut = new Recorder.Output(out);
+        recorder = Recorder.recorder(Tape.class, tapeOut);
+        recordedTick = -1;
+    }
+
+    private void closeTape() throws IOException {
+        tapeOut.flush();
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        length.putInt(0, (int) (written.getCount() - tapeLengthOffset - 4));
+        channel.write(length, tapeLengthOffset);
+    }
+
+    /**
+     * Keyframes of a journal file, from its index, or found by a scan of a journal which was not stopped.
+     */
+    static List<Keyframe> keyframes(final FileChannel file) throws IOException {
+        final DataInputStream header = open(file, 0);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a journal");
+        }
+        final int version = header.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported journal version: " + version);
+        }
+        final List<Keyframe> result = new ArrayList<>();
+        final ByteBuffer footer = ByteBuffer.allocate(12);
+        if (file.size() >= HEADER_SIZE + footer.capacity() && file.read(footer, file.size() - footer.capacity()) == footer.capacity()
+                && footer.getInt(8) == INDEX_MAGIC) {
+            final DataInputStream in = open(file, footer.getLong(0));
+            for (int count = in.readInt(); count > 0; count--) {
+                result.add(new Keyframe(in.readInt(), in.readLong()));
+            }
+            return result;
+        }
+        long offset = HEADER_SIZE;
+        while (offset < file.size()) {
+            final DataInputStream in = open(file, offset);
+            final int clock;
+            final int snapshotLength;
+            final int tapeLength;
+            try {
+                clock = in.readInt();
+                in.readLong();
+                in.readLong();
+                snapshotLength = in.readInt();
+                ByteStreams.skipFully(in, snapshotLength);
+                tapeLength = in.readInt();
+            } catch (EOFException e) {
+                break; //segment was not written completely.
+            }
+            result.add(new Keyframe(clock, offset));
+            if (tapeLength < 0) {
+                break;
+            }
+            offset += SEGMENT_HEADER_SIZE + snapshotLength + tapeLength;
+        }
+        return result;
+    }
+
+    /**
+     * Reads a segment of the journal, restores the world and random state of its keyframe if asked.
+     * Otherwise the world is expected to be replayed up to the keyframe, its hash is checked.
+     *
+     * @return tape of commands of the segment.
+     */
+    DataInputStream segment(final FileChannel file, final Keyframe keyframe, final boolean restore) throws IOException {
+        final DataInputStream in = open(file, keyframe.offset);
+        in.readInt();
+        final long state = in.readLong();
+        final long hash = in.readLong();
+        final int snapshotLength = in.readInt();
+        if (restore) {
+            final byte[] snapshot = new byte[snapshotLength];
+            in.readFully(snapshot);
+            map.restore(new Snapshot(snapshot));
+            rnd.setState(state);
+            checkState(map.getHash() == hash, "World hash of keyframe %s differs once restored", keyframe.clock);
+        } else {
+            checkState(map.getHash() == hash, "Replay diverged from the journal before tick %s", keyframe.clock);
+            ByteStreams.skipFully(in, snapshotLength);
+        }
+        final int tapeLength = in.readInt();
+        return tapeLength >= 0 ? new DataInputStream(new LimitInputStream(in, tapeLength)) : in;
+    }
+
+    /**
+     * @return stream reading the file from the offset on, it moves position of the channel.
+     */
+    private static DataInputStream open(final FileChannel file, final long offset) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.position(offset))));
+    }
+
+    /**
+     * Position of a segment in a journal file, the world at the start of the segment is saved as of the clock.
+     */
+    static final class Keyframe {
+        final int clock;
+        final long offset;
+
+        private Keyframe(final int clock, final long offset) {
+            this.clock = clock;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package org.hilo.core.engine;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.hilo.core.utils.LinkedHashMapList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Compiled level: a grid of unit types with names of named units, ready to be fed into {@link GameMap#init(Level)}.
+ * <p/>
+ * Binary form is a header (magic, version, width, height), a table of unit types, a table of names
+ * by cell index and one byte per cell, bottom row first, holding an index in the type table (zero for empty cells).
+ * Loaded levels read cells straight from the memory mapped file.
+ */
+public final class Level {
+    private static final Logger log = LoggerFactory.getLogger(Level.class);
+    private static final int MAGIC = 0x48494C4D; //"HILM"
+    private static final int VERSION = 1;
+    /**
+     * Version of {@link #compile(int, List)}, bump it once the same source compiles differently.
+     */
+    private static final int COMPILER_VERSION = 1;
+    private static final int MAX_TYPES = 0xFF;
+
+    /**
+     * Units of text map symbols.
+     */
+    public static final Map<Character, Class<? extends GameMap.MapUnit>> SYMBOLS = ImmutableMap.<Character, Class<? extends GameMap.MapUnit>>builder()
+            .put('P', Actor.Player.class)
+            .put('E', Actor.Enemy.class)
+            .put('e', Actor.SmallEnemy.class)
+            .put('W', Block.Rock.class)
+            .put('D', Door.Locked.class)
+            .put('K', Thing.Key.class)
+            .put('_', Ammo.Mine.class)
+            .put('*', Ammo.Grenade.class)
+            .put('>', Transport.TravelatorRight.class)
+            .put('<', Transport.TravelatorLeft.class)
+            .put('T', Transport.Teleport.class)
+            .put('H', Transport.Ladder.class)
+            .put('-', Transport.Rope.class)
+            .put('^', Transport.Elevator.class)
+            .put('}', Transport.PushRight.class)
+            .put('{', Transport.PushLeft.class)
+            .put('X', Block.Box.class)
+            .put('S', Block.Sand.class)
+            .put('~', Fluid.Water.class)
+            .put('g', Fluid.Gasoline.class)
+            .build();
+
+    /**
+     * Builds a level from scratch, see {@link Level#cached(File, byte[], Compiler)}.
+     */
+    public interface Compiler {
+        Level compile() throws IOException;
+    }
+
+    private final int width;
+    private final int height;
+    /**
+     * Unit types by type index, null at index zero.
+     */
+    private final List<Class<? extends GameMap.MapUnit>> types;
+    /**
+     * Cell indexes of named units, ascending, and their names.
+     */
+    private final int[] namedCells;
+    private final String[] names;
+    private final ByteBuffer cells;
+    private final int cellsOffset;
+
+    private Level(final int width, final int height, final List<Class<? extends GameMap.MapUnit>> types,
+                  final int[] namedCells, final String[] names, final ByteBuffer cells, final int cellsOffset) {
+        this.width = width;
+        this.height = height;
+        this.types = types;
+        this.namedCells = namedCells;
+        this.names = names;
+        this.cells = cells;
+        this.cellsOffset = cellsOffset;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return unit type of the cell, null for empty cells.
+     */
+    @Nullable
+    public Class<? extends GameMap.MapUnit> getType(final int x, final int y) {
+        return types.get(cells.get(cellsOffset + y * width + x) & 0xFF);
+    }
+
+    /**
+     * @return number of named units, see {@link #getNamedCell(int)}.
+     */
+    public int getNameCount() {
+        return names.length;
+    }
+
+    /**
+     * @return cell index ({@code y * width + x}) of a named unit, ascending by the number.
+     */
+    public int getNamedCell(final int number) {
+        return namedCells[number];
+    }
+
+    public String getName(final int number) {
+        return names[number];
+    }
+
+    /**
+     * Converts a text map: one line per row, top row first, symbols of {@link #SYMBOLS}.
+     * Text after the first {@code width} characters of a line names units of the line, like {@code T=Top},
+     * names of a symbol are given to its units left to right.
+     */
+    public static Level compile(final int width, final List<String> lines) {
+        final Rows rows = new Rows(width, lines.size());
+        int y = 0;
+        for (final String line : Lists.reverse(ImmutableList.copyOf(lines))) {
+            rows.add(y++, line, (line.length() > width ? line.substring(width) : "").trim());
+        }
+        return rows.build();
+    }
+
+    /**
+     * Compiles rows of a text map one by one, bottom to top.
+     */
+    static final class Rows {
+        private final int width;
+        private final int height;
+        private final List<Class<? extends GameMap.MapUnit>> types = new ArrayList<>();
+        private final Map<Class<? extends GameMap.MapUnit>, Integer> typeIndexes = new HashMap<>();
+        private final byte[] cells;
+        private final List<Integer> namedCells = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+
+        Rows(final int width, final int height) {
+            this.width = width;
+            this.height = height;
+            this.cells = new byte[width * height];
+            this.types.add(null);
+        }
+
+        /**
+         * @param line       symbols of the row, characters after the width are ignored.
+         * @param namingPart names of units of the row.
+         */
+        void add(final int y, final CharSequence line, final String namingPart) {
+            @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
+            final Map<Character, List<String>> knownNames = new LinkedHashMapList<>();
+            if (!namingPart.isEmpty()) {
+                for (final String name : namingPart.split("\\s+")) {
+                    if (name.length() >= 3 && name.substring(1, 2).equals("=")) {
+                        knownNames.get(name.charAt(0)).add(name.substring(2));
+                    } else {
+                        log.error("Bad name '" + name + "' at line: " + line);
+                    }
+                }
+            }
+            for (int x = 0; x < width && x < line.length(); x++) {
+                final char ch = line.charAt(x);
+                final Class<? extends GameMap.MapUnit> type = SYMBOLS.get(ch);
+                if (type != null) {
+                    Integer typeIndex = typeIndexes.get(type);
+                    if (typeIndex == null) {
+                        typeIndex = types.size();
+                        types.add(type);
+                        typeIndexes.put(type, typeIndex);
+                    }
+                    cells[y * width + x] = typeIndex.byteValue();
+                    if (!knownNames.isEmpty()) {
+                        final List<String> nameList = knownNames.get(ch);
+                        if (nameList.size() > 0) {
+                            namedCells.add(y * width + x);
+                            names.add(nameList.remove(0));
+                        }
+                    }
+                }
+            }
+        }
+
+        Level build() {
+            final int[] namedCellArray = new int[namedCells.size()];
+            for (int i = 0; i < namedCellArray.length; i++) {
+                namedCellArray[i] = namedCells.get(i);
+            }
+            return new Level(width, height, types, namedCellArray, names.toArray(new String[names.size()]), ByteBuffer.wrap(cells), 0);
+        }
+    }
+
+    /**
+     * Writes binary form of the level.
+     */
+    public void write(final File file) throws IOException {
+        checkArgument(types.size() <= MAX_TYPES + 1, "Too many unit types: %s", types.size() - 1);
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeShort(types.size() - 1);
+            for (final Class<? extends GameMap.MapUnit> type : types.subList(1, types.size())) {
+                writeString(out, type.getName());
+            }
+            out.writeInt(names.length);
+            for (int number = 0; number < names.length; number++) {
+                out.writeInt(namedCells[number]);
+                writeString(out, names[number]);
+            }
+            for (int index = 0; index < width * height; index++) {
+                out.write(cells.get(cellsOffset + index));
+            }
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Maps binary form of the level into memory, cells are not copied.
+     */
+    public static Level load(final File file) throws IOException {
+        final ByteBuffer buffer;
+        try (final RandomAccessFile source = new RandomAccessFile(file, "r")) {
+            buffer = source.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, source.length());
+        }
+        if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a level file: " + file);
+        }
+        final int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported level version " + version + ": " + file);
+        }
+        try {
+            final int width = buffer.getInt();
+            final int height = buffer.getInt();
+            if (width < 0 || height < 0) {
+                throw new IOException("Bad level size " + width + "x" + height + ": " + file);
+            }
+            final int typeCount = buffer.getShort();
+            if (typeCount < 0 || typeCount > MAX_TYPES) {
+                throw new IOException("Bad unit type count " + typeCount + ": " + file);
+            }
+            final List<Class<? extends GameMap.MapUnit>> types = new ArrayList<>(typeCount + 1);
+            types.add(null);
+            for (int i = 0; i < typeCount; i++) {
+                final String typeName = readString(buffer);
+                try {
+                    types.add(Class.forName(typeName).asSubclass(GameMap.MapUnit.class));
+                } catch (ClassNotFoundException | ClassCastException e) {
+                    throw new IOException("Unknown unit type " + typeName + ": " + file, e);
+                }
+            }
+            final int nameCount = buffer.getInt();
+            if (nameCount < 0 || nameCount > buffer.remaining()) {
+                throw new IOException("Bad name count " + nameCount + ": " + file);
+            }
+            final long cellCount = (long) width * height;
+            final int[] namedCells = new int[nameCount];
+            final String[] names = new String[nameCount];
+            for (int number = 0; number < nameCount; number++) {
+                namedCells[number] = buffer.getInt();
+                if (namedCells[number] < 0 || namedCells[number] >= cellCount) {
+                    throw new IOException("Named cell " + namedCells[number] + " out of the level: " + file);
+                }
+                names[number] = readString(buffer);
+            }
+            if (buffer.remaining() < cellCount) {
+                throw new IOException("Truncated level file: " + file);
+            }
+            //cells refer to the type table, so a corrupt file fails here rather than in GameMap.init().
+            final int cellsOffset = buffer.position();
+            for (int index = 0; index < cellCount; index++) {
+                if ((buffer.get(cellsOffset + index) & 0xFF) >= types.size()) {
+                    throw new IOException("Unknown unit type at cell " + index + ": " + file);
+                }
+            }
+            return new Level(width, height, types, namedCells, names, buffer, cellsOffset);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated level file: " + file, e);
+        }
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * Loads compiled level from the cache directory, keyed by the hash of the source and of the compiler inputs:
+     * {@link #SYMBOLS} and the compiler version. Otherwise compiles the level and stores it there.
+     */
+    public static Level cached(final File directory, final byte[] source, final Compiler compiler) throws IOException {
+        final File file = new File(directory, "level-" + cacheKey(source) + ".v" + VERSION + ".bin");
+        if (file.isFile()) {
+            try {
+                return load(file);
+            } catch (IOException e) {
+                log.warn("Recompiling broken level cache " + file, e);
+            }
+        }
+        final Level level = compiler.compile();
+        if (directory.isDirectory() || directory.mkdirs()) {
+            final File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+            level.write(temporary);
+            if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+                log.warn("Failed to cache level into " + file);
+                if (!temporary.delete()) {
+                    temporary.deleteOnExit();
+                }
+            }
+        } else {
+            log.warn("Failed to create level cache directory " + directory);
+        }
+        return level;
+    }
+
+    private static String cacheKey(final byte[] source) {
+        final StringBuilder compiler = new StringBuilder().append(COMPILER_VERSION);
+        for (final Map.Entry<Character, Class<? extends GameMap.MapUnit>> symbol : new TreeMap<>(SYMBOLS).entrySet()) {
+            compiler.append('\n').append(symbol.getKey()).append('=').append(symbol.getValue().getName());
+        }
+        try {
+            final MessageDigest sha = MessageDigest.getInstance("SHA-1");
+            sha.update(source);
+            final byte[] digest = sha.digest(compiler.toString().getBytes(Charsets.UTF_8));
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.hilo.core.engine;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Text map in a memory mapped file, compiled into {@link Level} bands of rows on demand.
+ * <p/>
+ * Only line offsets are kept on heap, so a band is compiled without reading the rest of the map
+ * and bands can be compiled by several threads at once, see {@link GameMap#init(LevelReader, int)}.
+ * Map symbols are single byte characters, names after the map width are UTF-8.
+ */
+public final class LevelReader {
+    private final int width;
+    private final ByteBuffer text;
+    /**
+     * Offsets of lines, top line first, and the offset after the last line.
+     */
+    private final int[] lineStarts;
+    private final int height;
+
+    public LevelReader(final File file, final int width) throws IOException {
+        this.width = width;
+        try (final RandomAccessFile source = new RandomAccessFile(file, "r")) {
+            checkArgument(source.length() <= Integer.MAX_VALUE, "Text map is too large: %s", file);
+            this.text = source.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, source.length());
+        }
+        int[] starts = new int[1024];
+        int lines = 0;
+        final int length = text.limit();
+        int start = 0;
+        while (start < length) {
+            if (lines + 1 >= starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[lines++] = start;
+            while (start < length && text.get(start) != '\n') {
+                start++;
+            }
+            start++;
+        }
+        starts[lines] = Math.min(start, length + 1);
+        this.lineStarts = Arrays.copyOf(starts, lines + 1);
+        this.height = lines;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Compiles rows {@code [fromY, toY)}, row zero is the bottom line of the map. May be called concurrently.
+     *
+     * @return level of {@code toY - fromY} rows.
+     */
+    public Level band(final int fromY, final int toY) {
+        final Level.Rows rows = new Level.Rows(width, toY - fromY);
+        for (int y = fromY; y < toY; y++) {
+            final int line = height - 1 - y;
+            final int start = lineStarts[line];
+            int end = lineStarts[line + 1] - 1;
+            if (end > start && text.get(end - 1) == '\r') {
+                end--;
+            }
+            final Line symbols = new Line(start, Math.min(end, start + width));
+            final String namingPart = end > start + width ? decode(start + width, end).trim() : "";
+            rows.add(y - fromY, symbols, namingPart);
+        }
+        return rows.build();
+    }
+
+    private String decode(final int start, final int end) {
+        final byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = text.get(start + i);
+        }
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * Symbols of a line, read straight from the mapped file.
+     */
+    private final class Line implements CharSequence {
+        private final int start;
+        private final int end;
+
+        private Line(final int start, final int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return (char) (text.get(start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(final int from, final int to) {
+            return new Line(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return decode(start, end);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.hilo.core.engine;
+
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import org.hilo.core.utils.Recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Headless replay of a {@link Journal}: ticks run back to back as fast as possible, nothing is rendered.
+ */
+public class Replay {
+    @Inject
+    protected GameMap map;
+    @Inject
+    protected GameTime time;
+    @Inject
+    protected Journal journal;
+    @Inject
+    @SuppressWarnings("UnusedDeclaration")
+    private AI.Randomized ai; //thinks on its own GameTime schedule
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Replay <journal> [tick]");
+            System.exit(1);
+        }
+        final Replay replay = Guice.createInjector(new HiloModule()).getInstance(Replay.class);
+        final long start = System.nanoTime();
+        final int ticks = args.length > 1 ? replay.seek(new File(args[0]), Integer.parseInt(args[1])) : replay.run(new File(args[0]));
+        final long millis = (System.nanoTime() - start) / 1000000L;
+        System.out.println(replay.map.render());
+        System.out.println("Replayed " + ticks + " ticks in " + millis + " ms, clock " + replay.time.getClock()
+                + String.format(", world hash %016x", replay.map.getHash()));
+    }
+
+    /**
+     * Restores the world of the journal and replays all its commands.
+     *
+     * @return number of ticks simulated.
+     */
+    public int run(final File file) throws IOException {
+        return play(file, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Restores the world as of the tick: from the last keyframe at or before it, replaying commands from there on.
+     * Ticks past the end of a journal which was not stopped are simulated without commands.
+     *
+     * @return number of ticks simulated.
+     */
+    public int seek(final File file, final int tick) throws IOException {
+        return play(file, tick, tick);
+    }
+
+    private int play(final File file, final int from, final int limit) throws IOException {
+        try (final RandomAccessFile source = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = source.getChannel();
+            final List<Journal.Keyframe> keyframes = Journal.keyframes(channel);
+            if (keyframes.isEmpty()) {
+                throw new IOException("Journal has no keyframes: " + file);
+            }
+            int first = 0;
+            while (first + 1 < keyframes.size() && keyframes.get(first + 1).clock <= from) {
+                first++;
+            }
+            final Playback playback = new Playback(limit);
+            for (int index = first; index < keyframes.size() && !playback.done; index++) {
+                final Journal.Keyframe keyframe = keyframes.get(index);
+                if (index > first) {
+                    playback.advance(keyframe.clock);
+                }
+                Recorder.play(Journal.Tape.class, playback, journal.segment(channel, keyframe, index == first));
+            }
+            playback.close();
+            if (!playback.ended && limit != Integer.MAX_VALUE) {
+                playback.advance(limit);
+            }
+            return playback.ticks;
+        }
+    }
+
+    /**
+     * Runs ticks up to the recorded one and queues its commands, they are applied when the tick is closed.
+     */
+    private class Playback implements Journal.Tape {
+        /**
+         * Last tick to simulate, later ticks and their commands are skipped.
+         */
+        private final int limit;
+        private boolean open = false;
+        private boolean done = false;
+        private boolean ended = false;
+        private int ticks = 0;
+
+        private Playback(final int limit) {
+            this.limit = limit;
+        }
+
+        private void step() {
+            time.tick();
+            map.applyOperations();
+            ticks++;
+        }
+
+        private void close() {
+            if (open) {
+                map.applyOperations();
+                ticks++;
+                open = false;
+            }
+        }
+
+        /**
+         * Simulates ticks up to the clock, without commands.
+         */
+        private void advance(final int clock) {
+            close();
+            while (time.getClock() < Math.min(clock, limit)) {
+                step();
+            }
+            done |= clock >= limit;
+        }
+
+        @Override
+        public void tick(final int clock) {
+            close();
+            if (clock > limit) {
+                done = true;
+                return;
+            }
+            while (time.getClock() < clock - 1) {
+                step();
+            }
+            time.tick();
+            open = true;
+        }
+
+        private void command(final Journal.Command command) {
+            if (!done) {
+                map.addAction(journal.action(command));
+            }
+        }
+
+        @Override
+        public void right() {
+            command(Journal.Command.RIGHT);
+        }
+
+        @Override
+        public void left() {
+            command(Journal.Command.LEFT);
+        }
+
+        @Override
+        public void jump() {
+            command(Journal.Command.JUMP);
+        }
+
+        @Override
+        public void descend() {
+            command(Journal.Command.DESCEND);
+        }
+
+        @Override
+        public void act() {
+            command(Journal.Command.ACT);
+        }
+
+        @Override
+        public void useTool() {
+            command(Journal.Command.USE_TOOL);
+        }
+
+        @Override
+        public void changeTool() {
+            command(Journal.Command.CHANGE_TOOL);
+        }
+
+        @Override
+        public void end(final int clock) {
+            advance(clock);
+            ended = true;
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package org.hilo.core.engine;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.hilo.core.utils.InputQueue;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * I/O of all SSH shell sessions on a fixed number of threads.
+ * <p/>
+ * One scheduler thread polls input of all sessions without blocking and parses keys. Frames are pushed from
+ * {@link GameRenderer} into per-session mailboxes and written by a flush task of the session on a fixed pool
+ * of writers. A session holds only the latest unsent view and runs at most one flush task, so a slow client
+ * skips frames. A client stalled in a single write longer than {@code hilo.ssh.writeTimeout} is dropped.
+ */
+@Singleton
+public class SessionHub implements GameRenderer.Listener {
+    /**
+     * Pending commands of a session, and commands of a session applied per tick.
+     */
+    private static final int INPUT_CAPACITY = 16;
+    private static final int INPUT_QUANTUM = 4;
+    /**
+     * Threads writing frames, milliseconds a write may block, and milliseconds between polls of input.
+     */
+    private static final int WRITERS = Integer.getInteger("hilo.ssh.writers", Runtime.getRuntime().availableProcessors());
+    private static final long WRITE_TIMEOUT = Long.getLong("hilo.ssh.writeTimeout", 5000L);
+    private static final long POLL_INTERVAL = 10L;
+
+    @Inject
+    protected GameMap map;
+    @Inject
+    protected GameRenderer renderer;
+    @Inject
+    protected Journal journal;
+    /**
+     * Send only changed cells and lines to clients, full repaints are used to resync.
+     */
+    protected boolean deltaFrames = Boolean.parseBoolean(System.getProperty("hilo.ssh.delta", "true"));
+
+    private final Set<Session> sessions = new CopyOnWriteArraySet<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("hilo-session-scheduler").setDaemon(true).build());
+    private final ExecutorService writers = Executors.newFixedThreadPool(WRITERS,
+            new ThreadFactoryBuilder().setNameFormat("hilo-session-writer-%d").setDaemon(true).build());
+
+    @Inject
+    protected void start() {
+        renderer.subscribe(this);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final long now = System.currentTimeMillis();
+                for (final Session session : sessions) {
+                    session.poll(now);
+                }
+            }
+        }, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public Command newSession() {
+        return new Session();
+    }
+
+    @Override
+    public void onView(final GameRenderer.View view) {
+        for (final Session session : sessions) {
+            session.offer(view);
+        }
+    }
+
+    /**
+     * @return command bound to the key, null for unknown keys.
+     */
+    @Nullable
+    private static Journal.Command forKey(final char key) {
+        switch (key) {
+            case 'C': //right
+                return Journal.Command.RIGHT;
+            case 'D': //left
+                return Journal.Command.LEFT;
+            case 'A': //up
+                return Journal.Command.JUMP;
+            case 'B': //down
+                return Journal.Command.DESCEND;
+            case '\t': //switch
+                return Journal.Command.CHANGE_TOOL;
+            case ' ': //act
+                return Journal.Command.ACT;
+            case 'Q'://fire
+                return Journal.Command.USE_TOOL;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Shell of a single client: streams are read and written on threads of the hub.
+     */
+    protected class Session implements Command, Runnable {
+        private final byte[] inputBuffer = new byte[256];
+        private final AtomicReference<GameRenderer.View> mailbox = new AtomicReference<>(null);
+        private final AtomicBoolean flushing = new AtomicBoolean(false);
+        /**
+         * Repeated keys are coalesced while the game thread has not applied them yet.
+         */
+        private final InputQueue.Lane<Runnable> input = map.newInputLane(
+                INPUT_CAPACITY, INPUT_QUANTUM, InputQueue.Overflow.COALESCE);
+        private volatile InputStream in;
+        private volatile OutputStream out;
+        private volatile WritableByteChannel channel;
+        private volatile ExitCallback exitCallback;
+        private volatile Environment environment;
+        /**
+         * Minimal delay between frames, clients may cap frame rate with HILO_FPS variable.
+         */
+        private volatile long frameInterval = 0L;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        /**
+         * Touched only by the flush task, which never runs concurrently with itself.
+         */
+        private GameRenderer.View lastView = null;
+        private long lastWrite = 0L;
+        /**
+         * Start of the write in progress, zero while the flush task does not write.
+         */
+        private volatile long writeStarted = 0L;
+
+        @Override
+        public void setInputStream(final InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void setOutputStream(final OutputStream out) {
+            this.out = out;
+            this.channel = Channels.newChannel(out);
+        }
+
+        @Override
+        public void setErrorStream(final OutputStream err) {
+            //not used.
+        }
+
+        @Override
+        public void setExitCallback(final ExitCallback exitCallback) {
+            this.exitCallback = exitCallback;
+        }
+
+        @Override
+        public void start(final Environment environment) throws IOException {
+            this.environment = environment;
+            this.frameInterval = frameInterval(environment.getEnv().get("HILO_FPS"));
+            sessions.add(this);
+            offer(renderer.getView());
+        }
+
+        @Override
+        public void destroy() {
+            close();
+        }
+
+        /**
+         * Leaves the hub and ends the shell, only the first call has effect.
+         */
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            sessions.remove(this);
+            input.close();
+            final ExitCallback callback = exitCallback;
+            if (callback != null) {
+                callback.onExit(0);
+            }
+        }
+
+        /**
+         * Reads keys available without blocking, drops the client if it is stalled in a write.
+         */
+        private void poll(final long now) {
+            final long started = writeStarted;
+            if (started != 0L && now - started > WRITE_TIMEOUT) {
+                close();
+                return;
+            }
+            try {
+                int available = in.available();
+                while (available > 0) {
+                    final int count = in.read(inputBuffer, 0, Math.min(available, inputBuffer.length));
+                    if (count < 0) {
+                        close();
+                        return;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        onKey(Character.toUpperCase((char) (inputBuffer[i] & 0xFF)));
+                    }
+                    available -= count;
+                }
+                if (available < 0) {
+                    close();
+                }
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    e.printStackTrace();
+                }
+                close();
+            }
+        }
+
+        private void onKey(final char key) {
+            if (key == 27 || key == '[') {
+                return;
+            }
+            final Journal.Command command = forKey(key);
+            if (command != null) {
+                input.offer(journal.action(command));
+            } else {
+                System.out.println("Command: " + key + " @ " + environment.getEnv());
+            }
+        }
+
+        private void offer(final GameRenderer.View view) {
+            mailbox.set(view);
+            if (flushing.compareAndSet(false, true)) {
+                writers.execute(this);
+            }
+        }
+
+        /**
+         * Flush task: writes the latest view from the mailbox, honours the frame rate cap of the client.
+         */
+        @Override
+        public void run() {
+            try {
+                while (!closed.get()) {
+                    final long capDelay = lastWrite + frameInterval - System.currentTimeMillis();
+                    if (capDelay > 0) {
+                        scheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                writers.execute(Session.this);
+                            }
+                        }, capDelay, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    final GameRenderer.View view = mailbox.getAndSet(null);
+                    if (view == null) {
+                        flushing.set(false);
+                        if (mailbox.get() == null || !flushing.compareAndSet(false, true)) {
+                            return;
+                        }
+                    } else if (view != lastView) {
+                        final ByteBuffer update = view.getUpdate(deltaFrames ? lastView : null);
+                        writeStarted = System.currentTimeMillis();
+                        try {
+                            while (update.hasRemaining()) {
+                                channel.write(update);
+                            }
+                            out.flush();
+                        } finally {
+                            writeStarted = 0L;
+                        }
+                        lastView = view;
+                        lastWrite = System.currentTimeMillis();
+                    }
+                }
+            } catch (Exception e) {
+                if (!closed.get()) {
+                    e.printStackTrace();
+                }
+                close();
+                if (System.getProperty("os.name").toLowerCase().contains("windows")){
+                    System.exit(0);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * @return delay between frames for the HILO_FPS value, zero if it is not set or malformed.
+     */
+    private static long frameInterval(@Nullable final String fps) {
+        if (fps != null && fps.matches("\\d{1,3}") && Integer.parseInt(fps) > 0) {
+            return 1000L / Integer.parseInt(fps);
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,152 @@
+package org.hilo.core.engine;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saved state of the world at a tick boundary, see {@link GameMap#snapshot()} and {@link GameMap#restore(Snapshot)}.
+ * <p/>
+ * Snapshot is taken into memory on the game thread and may be written to a file by any other thread.
+ * Units are stored once, as type, name, position and own state, and referenced by their number afterwards,
+ * so units held by other units (things in a bag, a key in a door) are saved with their holders.
+ */
+public final class Snapshot {
+    static final int MAGIC = 0x48494C53; //"HILS"
+    static final int VERSION = 1;
+
+    private final byte[] data;
+
+    Snapshot(final byte[] data) {
+        this.data = data;
+    }
+
+    public int size() {
+        return data.length;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Writes snapshot to a temporary file next to the target and moves it into place,
+     * so a crash while writing keeps the previous snapshot intact.
+     */
+    public void write(final File file) throws IOException {
+        final File temporary = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        Files.write(temporary.toPath(), data);
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static Snapshot read(final File file) throws IOException {
+        return new Snapshot(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Stream of a snapshot being written, units are written by {@link #writeUnit(GameMap.MapUnit)}.
+     */
+    public static final class Output extends DataOutputStream {
+        private final Map<GameMap.MapUnit, Integer> ids = new IdentityHashMap<>();
+        private final Map<Class<?>, Integer> typeIds = new HashMap<>();
+
+        Output() {
+            super(new ByteArrayOutputStream());
+        }
+
+        /**
+         * Writes a reference to the unit, unit itself and its state are written on first reference.
+         */
+        public void writeUnit(@Nullable final GameMap.MapUnit unit) throws IOException {
+            if (unit == null) {
+                writeInt(-1);
+                return;
+            }
+            final Integer id = ids.get(unit);
+            if (id != null) {
+                writeInt(id);
+                return;
+            }
+            writeInt(ids.size());
+            ids.put(unit, ids.size());
+            final Class<?> type = unit.getClass();
+            final Integer typeId = typeIds.get(type);
+            if (typeId != null) {
+                writeShort(typeId);
+            } else {
+                writeShort(typeIds.size());
+                typeIds.put(type, typeIds.size());
+                writeUTF(type.getName());
+            }
+            final String name = unit.getName();
+            writeBoolean(name != null);
+            if (name != null) {
+                writeUTF(name);
+            }
+            writeInt(unit.getPosition().getX());
+            writeInt(unit.getPosition().getY());
+            unit.writeState(this);
+        }
+
+        Snapshot toSnapshot() throws IOException {
+            flush();
+            return new Snapshot(((ByteArrayOutputStream) out).toByteArray());
+        }
+    }
+
+    /**
+     * Stream of a snapshot being restored, units are created by {@link #readUnit()}.
+     */
+    public static final class Input extends DataInputStream {
+        private final GameMap map;
+        private final List<GameMap.MapUnit> units = new ArrayList<>();
+        private final List<Class<? extends GameMap.MapUnit>> types = new ArrayList<>();
+
+        Input(final Snapshot snapshot, final GameMap map) {
+            super(new ByteArrayInputStream(snapshot.data));
+            this.map = map;
+        }
+
+        @Nullable
+        public GameMap.MapUnit readUnit() throws IOException {
+            final int id = readInt();
+            if (id < 0) {
+                return null;
+            } else if (id < units.size()) {
+                return units.get(id);
+            } else if (id > units.size()) {
+                throw new IOException("Broken snapshot: unit " + id + " is out of order");
+            }
+            final int typeId = readShort();
+            if (typeId == types.size()) {
+                final String typeName = readUTF();
+                try {
+                    types.add(Class.forName(typeName).asSubclass(GameMap.MapUnit.class));
+                } catch (ClassNotFoundException | ClassCastException e) {
+                    throw new IOException("Unknown unit type " + typeName, e);
+                }
+            }
+            final String name = readBoolean() ? readUTF() : null;
+            final GameMap.Position position = new GameMap.Position(readInt(), readInt());
+            final GameMap.MapUnit unit = map.newUnit(types.get(typeId), name, position);
+            units.add(unit);
+            unit.readState(this);
+            return unit;
+        }
+
+        public <T extends GameMap.MapUnit> T readUnit(final Class<T> type) throws IOException {
+            return type.cast(readUnit());
+        }
+    }
+}
@@ -3,7 +3,9 @@ package org.hilo.core.engine;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
+import org.hilo.core.utils.Rnd;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -13,6 +15,13 @@ import java.util.List;
  *         Created: 10/31/13 10:57 PM
  */
 public abstract class Transport extends GameMap.MapUnit {
+    /**
+     * Conveyors move their load every third tick, on the ticks gravity is applied. Periodic callbacks of units run
+     * in the unit tick phase in index order, so the moves keep their order against falls of the same tick.
+     */
+    protected static final int CONVEY_PERIOD = 3;
+    protected static final int CONVEY_PHASE = 0;
+
     public static class Ladder extends Transport {
         @Override
         public boolean isAllowCrossing() {
@@ -24,6 +33,11 @@ public abstract class Transport extends GameMap.MapUnit {
             return true;
         }
 
+        @Override
+        public boolean isPageable() {
+            return true;
+        }
+
         @Override
         public View render() {
             return new View(null, null, 'H', false);
@@ -41,6 +55,11 @@ public abstract class Transport extends GameMap.MapUnit {
             return true;
         }
 
+        @Override
+        public boolean isPageable() {
+            return true;
+        }
+
         @Override
         public View render() {
             return new View(null, null, '-', false);
@@ -62,12 +81,15 @@ public abstract class Transport extends GameMap.MapUnit {
         }
 
         @Override
-        public void onTick() {
-            if (time.getClock() % 3 == 0) {
-                for (final Movable movable : map.list(getPosition(), Movable.class)) {
-                    map.move((GameMap.MapUnit) movable, GameMap.Direction.Up);
+        public void onPlace() {
+            time.periodic(CONVEY_PERIOD, CONVEY_PHASE, this, new Runnable() {
+                @Override
+                public void run() {
+                    for (final Movable movable : map.list(getPosition(), Movable.class)) {
+                        map.move((GameMap.MapUnit) movable, GameMap.Direction.Up);
+                    }
                 }
-            }
+            });
         }
 
         @Override
@@ -91,12 +113,15 @@ public abstract class Transport extends GameMap.MapUnit {
         }
 
         @Override
-        public void onTick() {
-            if (time.getClock() % 3 == 0) {
-                for (final Movable movable : map.list(getPosition(), Movable.class)) {
-                    map.move((GameMap.MapUnit) movable, getDirection());
+        public void onPlace() {
+            time.periodic(CONVEY_PERIOD, CONVEY_PHASE, this, new Runnable() {
+                @Override
+                public void run() {
+                    for (final Movable movable : map.list(getPosition(), Movable.class)) {
+                        map.move((GameMap.MapUnit) movable, getDirection());
+                    }
                 }
-            }
+            });
         }
 
 
@@ -137,12 +162,15 @@ public abstract class Transport extends GameMap.MapUnit {
         protected abstract GameMap.Direction getDirection();
 
         @Override
-        public void onTick() {
-            if (time.getClock() % 3 == 0) {
-                for (final Movable movable : map.list(getPosition().translate(GameMap.Direction.Up), Movable.class)) {
-                    map.move((GameMap.MapUnit) movable, getDirection());
+        public void onPlace() {
+            time.periodic(CONVEY_PERIOD, CONVEY_PHASE, this, new Runnable() {
+                @Override
+                public void run() {
+                    for (final Movable movable : map.list(getPosition().translate(GameMap.Direction.Up), Movable.class)) {
+                        map.move((GameMap.MapUnit) movable, getDirection());
+                    }
                 }
-            }
+            });
         }
 
 
@@ -181,8 +209,28 @@ public abstract class Transport extends GameMap.MapUnit {
     }
 
     public static class Teleport extends Transport implements Usable {
+        protected static final int TRAVEL_TICKS = 150;
+
         @Inject
         protected GameTime time;
+        @Inject
+        protected Rnd rnd;
+        /**
+         * Actors on their way to other gates, saved with the teleport they entered.
+         */
+        protected final List<Arrival> arrivals = new ArrayList<>();
+
+        protected static class Arrival {
+            protected final Actor actor;
+            protected final Teleport gate;
+            protected final int when;
+
+            protected Arrival(final Actor actor, final Teleport gate, final int when) {
+                this.actor = actor;
+                this.gate = gate;
+                this.when = when;
+            }
+        }
 
         @Override
         public boolean isAllowCrossing() {
@@ -199,21 +247,54 @@ public abstract class Transport extends GameMap.MapUnit {
         public boolean use(final Actor actor) {
             final List<Teleport> gates = new ArrayList<>(Sets.difference(ImmutableSet.copyOf(map.list(Teleport.class)), ImmutableSet.of(this)));
             if (gates.size() > 0) {
-                Collections.shuffle(gates);
+                Collections.shuffle(gates, rnd);
                 final Teleport gate = gates.get(0);
                 map.remove(actor);
                 map.set(getPosition()).create(Effect.Appear.class);
-                time.scheduled(150, new Runnable() {
-                    @Override
-                    public void run() {
-                        map.set(gate.getPosition());
-                        map.put(actor);
-                        map.create(Effect.Appear.class);
-                    }
-                });
+                final Arrival arrival = new Arrival(actor, gate, time.getClock() + TRAVEL_TICKS);
+                arrivals.add(arrival);
+                schedule(arrival);
                 return true;
             }
             return false;
         }
+
+        private void schedule(final Arrival arrival) {
+            time.scheduled(arrival.when - time.getClock(), new Runnable() {
+                @Override
+                public void run() {
+                    arrivals.remove(arrival);
+                    map.set(arrival.gate.getPosition());
+                    map.put(arrival.actor);
+                    map.create(Effect.Appear.class);
+                }
+            });
+        }
+
+        @Override
+        public void onPlace() {
+            //arrivals restored from a snapshot.
+            for (final Arrival arrival : arrivals) {
+                schedule(arrival);
+            }
+        }
+
+        @Override
+        public void writeState(final Snapshot.Output out) throws IOException {
+            out.writeInt(arrivals.size());
+            for (final Arrival arrival : arrivals) {
+                out.writeUnit(arrival.actor);
+                out.writeUnit(arrival.gate);
+                out.writeInt(arrival.when);
+            }
+        }
+
+        @Override
+        public void readState(final Snapshot.Input in) throws IOException {
+            arrivals.clear();
+            for (int count = in.readInt(); count > 0; count--) {
+                arrivals.add(new Arrival(in.readUnit(Actor.class), in.readUnit(Teleport.class), in.readInt()));
+            }
+        }
     }
 }
@@ -0,0 +1,175 @@
+package org.hilo.core.engine;
+
+import com.google.inject.BindingAnnotation;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+
+import javax.annotation.Nullable;
+import javax.inject.Named;
+import javax.inject.Qualifier;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates map units without a Guice injection per unit.
+ * <p/>
+ * Injection plan of a unit class is resolved once: its constructor and injected fields. Singletons are looked up
+ * in Guice once, position, direction and name come straight from the cursor providers of
+ * {@link GameMap}, other dependencies from cached Guice providers. Classes with injected constructors or methods
+ * are left to Guice.
+ */
+@Singleton
+public class UnitFactory {
+    @Inject
+    private Injector injector;
+    @Inject
+    private GameMap.PositionProvider positionProvider;
+    @Inject
+    private GameMap.DirectionProvider directionProvider;
+    @Inject
+    private GameMap.NameProvider nameProvider;
+
+    private final ConcurrentMap<Class<?>, Plan<?>> plans = new ConcurrentHashMap<>();
+
+    public <T> T create(final Class<T> type) {
+        @SuppressWarnings("unchecked")
+        Plan<T> plan = (Plan<T>) plans.get(type);
+        if (plan == null) {
+            plan = plan(type);
+            plans.putIfAbsent(type, plan);
+        }
+        return plan.create();
+    }
+
+    private interface Plan<T> {
+        T create();
+    }
+
+    private <T> Plan<T> plan(final Class<T> type) {
+        final Constructor<T> constructor;
+        try {
+            constructor = type.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            return guicePlan(type);
+        }
+        if (Modifier.isAbstract(type.getModifiers()) || constructor.isAnnotationPresent(Inject.class)
+                || constructor.isAnnotationPresent(javax.inject.Inject.class)) {
+            return guicePlan(type);
+        }
+        final List<Field> fields = new ArrayList<>();
+        final List<Provider<?>> values = new ArrayList<>();
+        for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (final Method method : clazz.getDeclaredMethods()) {
+                if (isInjected(method.getAnnotations())) {
+                    return guicePlan(type);
+                }
+            }
+            int position = 0;
+            for (final Field field : clazz.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && isInjected(field.getAnnotations())) {
+                    field.setAccessible(true);
+                    //superclass fields first, as Guice does.
+                    fields.add(position, field);
+                    values.add(position, provider(field));
+                    position++;
+                }
+            }
+        }
+        constructor.setAccessible(true);
+        final Field[] fieldArray = fields.toArray(new Field[fields.size()]);
+        final Provider<?>[] valueArray = values.toArray(new Provider<?>[values.size()]);
+        return new Plan<T>() {
+            @Override
+            public T create() {
+                try {
+                    final T instance = constructor.newInstance();
+                    for (int i = 0; i < fieldArray.length; i++) {
+                        fieldArray[i].set(instance, valueArray[i].get());
+                    }
+                    return instance;
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Failed to create " + type.getName(), e);
+                }
+            }
+        };
+    }
+
+    private <T> Plan<T> guicePlan(final Class<T> type) {
+        final Provider<T> provider = injector.getProvider(type);
+        return new Plan<T>() {
+            @Override
+            public T create() {
+                return provider.get();
+            }
+        };
+    }
+
+    private Provider<?> provider(final Field field) {
+        final Annotation qualifier = qualifier(field.getAnnotations());
+        if (field.getType() == GameMap.Position.class && qualifier == null) {
+            return positionProvider;
+        } else if (field.getType() == GameMap.Direction.class && qualifier == null) {
+            return directionProvider;
+        } else if (field.getType() == String.class && qualifier instanceof Named && "name".equals(((Named) qualifier).value())) {
+            return nameProvider;
+        }
+        final Key<?> key = qualifier != null
+                ? Key.get(field.getGenericType(), qualifier)
+                : Key.get(field.getGenericType());
+        final Provider<?> provider = injector.getProvider(key);
+        return Scopes.isSingleton(injector.getBinding(key)) ? new SingletonProvider<>(provider) : provider;
+    }
+
+    /**
+     * Remembers the singleton on first use, so it is created at the same moment as with Guice injection.
+     */
+    private static final class SingletonProvider<T> implements Provider<T> {
+        private final Provider<T> provider;
+        private volatile T instance = null;
+
+        private SingletonProvider(final Provider<T> provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public T get() {
+            T result = instance;
+            if (result == null) {
+                result = provider.get();
+                instance = result;
+            }
+            return result;
+        }
+    }
+
+    private static boolean isInjected(final Annotation[] annotations) {
+        for (final Annotation annotation : annotations) {
+            if (annotation instanceof Inject || annotation instanceof javax.inject.Inject) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    private static Annotation qualifier(final Annotation[] annotations) {
+        for (final Annotation annotation : annotations) {
+            final Class<? extends Annotation> annotationType = annotation.annotationType();
+            if (annotationType.isAnnotationPresent(BindingAnnotation.class) || annotationType.isAnnotationPresent(Qualifier.class)) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,418 @@
+package org.hilo.core.utils;
+
+import com.google.common.collect.AbstractIterator;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Width x height store of cell lists, indexed by (x, y), split into square chunks.
+ * <p/>
+ * Chunk storage is allocated on the first write into it and released by {@link #compact()} once it is empty,
+ * so empty parts of a huge world cost a single null reference per chunk. Lookups never allocate: cells that
+ * were never written and cells outside of the bounds are reported as a shared empty list.
+ * Writes outside of the bounds are rejected.
+ * <p/>
+ * With a {@link Pager} chunks can be written to a page file and dropped from memory, any access to a paged
+ * chunk reads it back first.
+ */
+public class Grid<V> implements Iterable<V> {
+    public static final int CHUNK_BITS = 6;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Writes values of paged chunks and restores them, values are detached from and attached to their owner there.
+     */
+    public interface Pager<V> {
+        boolean isPageable(V value);
+
+        void pageOut(V value, DataOutput out) throws IOException;
+
+        V pageIn(int x, int y, DataInput in) throws IOException;
+    }
+
+    private static final class Chunk<V> {
+        private final List<V>[] cells;
+
+        private Chunk() {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            final List<V>[] cells = new List[CHUNK_SIZE * CHUNK_SIZE];
+            this.cells = cells;
+        }
+
+        private boolean isEmpty() {
+            for (final List<V> cell : cells) {
+                if (cell != null && !cell.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Location of a paged chunk in the page file.
+     */
+    private static final class Page {
+        private final long offset;
+        private final int capacity;
+        private int length;
+
+        private Page(final long offset, final int capacity) {
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int chunksX;
+    private final int chunksY;
+    private final Chunk<V>[] chunks;
+    private Page[] pages = null;
+    /**
+     * Pages outgrown by their chunks, reused for chunks which fit into them.
+     */
+    private final List<Page> freePages = new ArrayList<>();
+    private Pager<V> pager = null;
+    private RandomAccessFile pageFile = null;
+    private int paged = 0;
+
+    public Grid(final int width, final int height) {
+        this.width = Math.max(width, 0);
+        this.height = Math.max(height, 0);
+        this.chunksX = (this.width + CHUNK_MASK) >> CHUNK_BITS;
+        this.chunksY = (this.height + CHUNK_MASK) >> CHUNK_BITS;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Chunk<V>[] chunks = new Chunk[chunksX * chunksY];
+        this.chunks = chunks;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChunksX() {
+        return chunksX;
+    }
+
+    public int getChunksY() {
+        return chunksY;
+    }
+
+    public boolean contains(final int x, final int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    /**
+     * @return live content of the cell, must not be modified by the caller.
+     */
+    public List<V> get(final int x, final int y) {
+        if (contains(x, y)) {
+            final Chunk<V> chunk = chunk(x, y, false);
+            if (chunk != null) {
+                final List<V> cell = chunk.cells[cellIndex(x, y)];
+                if (cell != null) {
+                    return cell;
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return false if cell is out of bounds and value was not stored.
+     */
+    public boolean add(final int x, final int y, final V value) {
+        if (!contains(x, y)) {
+            return false;
+        }
+        final Chunk<V> chunk = chunk(x, y, true);
+        final int index = cellIndex(x, y);
+        List<V> cell = chunk.cells[index];
+        if (cell == null) {
+            cell = new ArrayList<>(2);
+            chunk.cells[index] = cell;
+        }
+        cell.add(value);
+        return true;
+    }
+
+    public boolean remove(final int x, final int y, final V value) {
+        if (!contains(x, y)) {
+            return false;
+        }
+        final Chunk<V> chunk = chunk(x, y, false);
+        if (chunk == null) {
+            return false;
+        }
+        final List<V> cell = chunk.cells[cellIndex(x, y)];
+        return cell != null && cell.remove(value);
+    }
+
+    private static int cellIndex(final int x, final int y) {
+        return ((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK);
+    }
+
+    private int chunkIndex(final int x, final int y) {
+        return (y >> CHUNK_BITS) * chunksX + (x >> CHUNK_BITS);
+    }
+
+    @Nullable
+    private Chunk<V> chunk(final int x, final int y, final boolean allocate) {
+        final int index = chunkIndex(x, y);
+        final Chunk<V> chunk = chunks[index];
+        if (chunk != null || !(allocate || isPaged(index))) {
+            return chunk;
+        }
+        return load(index, allocate);
+    }
+
+    private boolean isPaged(final int index) {
+        final Page[] current = pages;
+        return current != null && current[index] != null && current[index].length > 0;
+    }
+
+    /**
+     * Slow path of chunk lookup: pages chunk in or allocates it, cells of a chunk may be written from several threads.
+     */
+    @Nullable
+    private synchronized Chunk<V> load(final int index, final boolean allocate) {
+        Chunk<V> chunk = chunks[index];
+        if (chunk == null && isPaged(index)) {
+            chunk = pageIn(index);
+        }
+        if (chunk == null && allocate) {
+            chunk = new Chunk<>();
+            chunks[index] = chunk;
+        }
+        return chunk;
+    }
+
+    /**
+     * Releases storage of empty chunks, must not run concurrently with writes.
+     *
+     * @return number of resident chunks.
+     */
+    public synchronized int compact() {
+        int resident = 0;
+        for (int index = 0; index < chunks.length; index++) {
+            final Chunk<V> chunk = chunks[index];
+            if (chunk != null) {
+                if (chunk.isEmpty()) {
+                    chunks[index] = null;
+                } else {
+                    resident++;
+                }
+            }
+        }
+        return resident;
+    }
+
+    /**
+     * Enables paging of chunks into the file, file content is overwritten.
+     */
+    public synchronized void setPaging(final File file, final Pager<V> pager) throws IOException {
+        checkState(this.pager == null, "Paging is already enabled");
+        this.pager = pager;
+        this.pages = new Page[chunks.length];
+        this.pageFile = new RandomAccessFile(file, "rw");
+        this.pageFile.setLength(0);
+        this.freePages.clear();
+    }
+
+    public boolean isPaged(final int chunkX, final int chunkY) {
+        return isPaged(chunkY * chunksX + chunkX);
+    }
+
+    /**
+     * @return number of chunks in the page file.
+     */
+    public int getPaged() {
+        return paged;
+    }
+
+    /**
+     * Writes the chunk into the page file and drops it, if all of its values are pageable.
+     *
+     * @return true if chunk was paged out.
+     */
+    public synchronized boolean pageOut(final int chunkX, final int chunkY) {
+        checkState(pager != null, "Paging is not enabled");
+        final int index = chunkY * chunksX + chunkX;
+        final Chunk<V> chunk = chunks[index];
+        if (chunk == null) {
+            return false;
+        }
+        int count = 0;
+        for (final List<V> cell : chunk.cells) {
+            if (cell != null) {
+                for (final V value : cell) {
+                    if (!pager.isPageable(value)) {
+                        return false;
+                    }
+                    count++;
+                }
+            }
+        }
+        try {
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(count);
+            for (int cellIndex = 0; cellIndex < chunk.cells.length; cellIndex++) {
+                final List<V> cell = chunk.cells[cellIndex];
+                if (cell != null) {
+                    for (final V value : cell) {
+                        out.writeShort(cellIndex);
+                        pager.pageOut(value, out);
+                    }
+                }
+            }
+            out.flush();
+            Page page = pages[index];
+            if (page == null || page.capacity < buffer.size()) {
+                if (page != null) {
+                    freePages.add(page);
+                }
+                page = allocatePage(buffer.size());
+                pages[index] = page;
+            }
+            pageFile.seek(page.offset);
+            pageFile.write(buffer.toByteArray());
+            page.length = buffer.size();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        chunks[index] = null;
+        paged++;
+        return true;
+    }
+
+    /**
+     * @return smallest free page which fits given length, a new page at the end of the file if there is none.
+     */
+    private Page allocatePage(final int length) throws IOException {
+        int best = -1;
+        for (int i = 0; i < freePages.size(); i++) {
+            final int capacity = freePages.get(i).capacity;
+            if (capacity >= length && (best < 0 || capacity < freePages.get(best).capacity)) {
+                best = i;
+            }
+        }
+        return best >= 0 ? freePages.remove(best) : new Page(pageFile.length(), length);
+    }
+
+    /**
+     * Reads back all paged chunks.
+     */
+    public synchronized void pageInAll() {
+        if (pages != null) {
+            for (int index = 0; index < pages.length; index++) {
+                if (pages[index] != null && pages[index].length > 0) {
+                    pageIn(index);
+                }
+            }
+        }
+    }
+
+    private Chunk<V> pageIn(final int index) {
+        final Page page = pages[index];
+        final Chunk<V> chunk = new Chunk<>();
+        try {
+            final byte[] bytes = new byte[page.length];
+            pageFile.seek(page.offset);
+            pageFile.readFully(bytes);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            final int originX = (index % chunksX) << CHUNK_BITS;
+            final int originY = (index / chunksX) << CHUNK_BITS;
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final int cellIndex = in.readShort();
+                List<V> cell = chunk.cells[cellIndex];
+                if (cell == null) {
+                    cell = new ArrayList<>(2);
+                    chunk.cells[cellIndex] = cell;
+                }
+                cell.add(pager.pageIn(originX + (cellIndex & CHUNK_MASK), originY + (cellIndex >> CHUNK_BITS), in));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        page.length = 0;
+        paged--;
+        chunks[index] = chunk;
+        return chunk;
+    }
+
+    /**
+     * Closes the page file and disables paging, paged chunks are lost.
+     */
+    public synchronized void close() {
+        final RandomAccessFile file = pageFile;
+        pageFile = null;
+        pager = null;
+        pages = null;
+        freePages.clear();
+        paged = 0;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Iterates resident chunks chunk by chunk, in rows of chunks from top to bottom and left to right,
+     * cells of a chunk row by row. Paged chunks are skipped.
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return new AbstractIterator<V>() {
+            private int chunkIndex = 0;
+            private int cellIndex = CHUNK_SIZE * CHUNK_SIZE;
+            private Chunk<V> chunk = null;
+            private Iterator<V> cell = Collections.<V>emptyList().iterator();
+
+            @Override
+            protected V computeNext() {
+                while (!cell.hasNext()) {
+                    if (chunk == null || cellIndex >= chunk.cells.length) {
+                        do {
+                            if (chunkIndex >= chunks.length) {
+                                return endOfData();
+                            }
+                            chunk = chunks[chunkIndex++];
+                        } while (chunk == null);
+                        cellIndex = 0;
+                    }
+                    final List<V> next = chunk.cells[cellIndex++];
+                    if (next != null) {
+                        cell = next.iterator();
+                    }
+                }
+                return cell.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,156 @@
+package org.hilo.core.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Lock-free multi-producer, single-consumer queue of inputs, split into lanes.
+ * <p/>
+ * Each producer (an SSH session) offers into its own bounded lane without taking any lock.
+ * The consumer drains lanes round robin, at most a quantum of inputs from each lane per drain,
+ * so a flooding producer neither stalls the consumer nor delays inputs of other lanes.
+ */
+public class InputQueue<T> {
+    /**
+     * What a lane does with inputs it can not accept.
+     */
+    public enum Overflow {
+        /**
+         * Rejects new inputs while the lane is full.
+         */
+        DROP,
+        /**
+         * Rejects inputs equal to one already pending, drops the oldest input while the lane is full.
+         */
+        COALESCE
+    }
+
+    /**
+     * Bounded input lane of a single producer.
+     */
+    public static final class Lane<T> {
+        private final InputQueue<T> queue;
+        private final int capacity;
+        private final int quantum;
+        private final Overflow overflow;
+        private final Queue<T> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger dropped = new AtomicInteger();
+
+        private Lane(final InputQueue<T> queue, final int capacity, final int quantum, final Overflow overflow) {
+            this.queue = queue;
+            this.capacity = capacity;
+            this.quantum = quantum;
+            this.overflow = overflow;
+        }
+
+        /**
+         * @return false if input was dropped or coalesced.
+         */
+        public boolean offer(final T input) {
+            if (overflow == Overflow.COALESCE && pending.contains(input)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (size.incrementAndGet() > capacity) {
+                if (overflow == Overflow.DROP || pending.poll() == null) {
+                    size.decrementAndGet();
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+            }
+            pending.add(input);
+            return true;
+        }
+
+        /**
+         * @return number of inputs dropped or coalesced so far.
+         */
+        public int getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Detaches lane from the queue, pending inputs are discarded.
+         */
+        public void close() {
+            queue.detach(this);
+            pending.clear();
+        }
+
+        private int drainTo(final Collection<? super T> target) {
+            int count = 0;
+            T input;
+            while (count < quantum && (input = pending.poll()) != null) {
+                size.decrementAndGet();
+                target.add(input);
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private volatile Lane<T>[] lanes = newLanes(0);
+    /**
+     * Lane drained first, rotated on each drain. Touched only by the consumer.
+     */
+    private int first = 0;
+
+    /**
+     * @param capacity maximal number of pending inputs in the lane.
+     * @param quantum  maximal number of inputs taken from the lane by a single drain.
+     */
+    public Lane<T> newLane(final int capacity, final int quantum, final Overflow overflow) {
+        checkArgument(capacity > 0, "Capacity must be positive: %s", capacity);
+        checkArgument(quantum > 0, "Quantum must be positive: %s", quantum);
+        final Lane<T> lane = new Lane<>(this, capacity, quantum, overflow);
+        synchronized (this) {
+            final Lane<T>[] attached = Arrays.copyOf(lanes, lanes.length + 1);
+            attached[lanes.length] = lane;
+            lanes = attached;
+        }
+        return lane;
+    }
+
+    private synchronized void detach(final Lane<T> lane) {
+        final Lane<T>[] attached = newLanes(lanes.length);
+        int size = 0;
+        for (final Lane<T> existing : lanes) {
+            if (existing != lane) {
+                attached[size++] = existing;
+            }
+        }
+        lanes = Arrays.copyOf(attached, size);
+    }
+
+    /**
+     * Moves pending inputs to the target, taking at most a quantum from each lane. Must be called by a single consumer.
+     *
+     * @return number of inputs moved.
+     */
+    public int drainTo(final Collection<? super T> target) {
+        final Lane<T>[] current = lanes;
+        if (current.length == 0) {
+            return 0;
+        }
+        first = (first + 1) % current.length;
+        int count = 0;
+        for (int i = 0; i < current.length; i++) {
+            count += current[(first + i) % current.length].drainTo(target);
+        }
+        return count;
+    }
+
+    private static <T> Lane<T>[] newLanes(final int size) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Lane<T>[] lanes = new Lane[size];
+        return lanes;
+    }
+}
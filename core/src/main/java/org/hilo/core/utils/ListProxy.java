@@ -1,65 +1,118 @@
 package org.hilo.core.utils;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
-
-import static com.google.common.base.Preconditions.checkState;
+import java.util.List;
+import java.util.RandomAccess;
 
 /**
+ * Broadcasts a call to every element of a list which is an instance of the call type.
+ * <p/>
+ * Calls are declared once as constants (see {@code GameObject.Damageable#DAMAGE}), so broadcasting allocates
+ * nothing and dispatch is a plain virtual call. Random access lists are walked by index, without an iterator.
+ *
  * @author dmitry.mamonov
  *         Created: 11/2/13 1:17 AM
  */
 public class ListProxy {
-    public static <T> T allVoid(final Class<T> clazz, final Iterable<?> list) {
-        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, new InvocationHandler() {
-            @Override
-            public Object invoke(final Object ignoreSelf, final Method method, final Object[] args) throws Throwable {
-                checkState(method.getReturnType() == Void.TYPE);
-                for (final Object entry : list) {
-                    if (clazz.isInstance(entry)) {
-                        method.invoke(entry, args);
-                    }
+    /**
+     * Call of a method of type {@code T}, receivers are filtered by {@link #getType()}.
+     */
+    public static abstract class Call<T> {
+        private final Class<T> type;
+
+        protected Call(final Class<T> type) {
+            this.type = type;
+        }
+
+        public final Class<T> getType() {
+            return type;
+        }
+    }
+
+    /**
+     * Call of a void method with a single int argument.
+     */
+    public static abstract class IntCall<T> extends Call<T> {
+        protected IntCall(final Class<T> type) {
+            super(type);
+        }
+
+        public abstract void call(T target, int value);
+    }
+
+    /**
+     * Call of a boolean method with a single argument, true means success.
+     */
+    public static abstract class Test<T, A> extends Call<T> {
+        protected Test(final Class<T> type) {
+            super(type);
+        }
+
+        public abstract boolean call(T target, A argument);
+    }
+
+    public static <T> void allVoid(final IntCall<T> call, final Iterable<?> list, final int value) {
+        final Class<T> type = call.getType();
+        if (list instanceof RandomAccess && list instanceof List) {
+            final List<?> entries = (List<?>) list;
+            for (int i = 0; i < entries.size(); i++) {
+                final Object entry = entries.get(i);
+                if (type.isInstance(entry)) {
+                    call.call(type.cast(entry), value);
+                }
+            }
+        } else {
+            for (final Object entry : list) {
+                if (type.isInstance(entry)) {
+                    call.call(type.cast(entry), value);
                 }
-                return null;
             }
-        }));
+        }
     }
 
-    public static <T> T firstSuccess(final Class<T> clazz, final Iterable<?> list) {
-        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, new InvocationHandler() {
-            @Override
-            public Object invoke(final Object ignoreSelf, final Method method, final Object[] args) throws Throwable {
-                checkState(method.getReturnType()==Boolean.TYPE);
-                for (final Object entry : list) {
-                    if (clazz.isInstance(entry)) {
-                        final Object result = method.invoke(entry, args);
-                        if (Boolean.TRUE.equals(result)) {
-                            return result;
-                        }
-                    }
+    /**
+     * @return true once the call succeeds on an element, remaining elements are not called.
+     */
+    public static <T, A> boolean firstSuccess(final Test<T, A> test, final Iterable<?> list, final A argument) {
+        final Class<T> type = test.getType();
+        if (list instanceof RandomAccess && list instanceof List) {
+            final List<?> entries = (List<?>) list;
+            for (int i = 0; i < entries.size(); i++) {
+                final Object entry = entries.get(i);
+                if (type.isInstance(entry) && test.call(type.cast(entry), argument)) {
+                    return true;
                 }
-                return Boolean.FALSE;
             }
-        }));
+        } else {
+            for (final Object entry : list) {
+                if (type.isInstance(entry) && test.call(type.cast(entry), argument)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
-    public static <T> T lastSuccess(final Class<T> clazz, final Iterable<?> list) {
-        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, new InvocationHandler() {
-            @Override
-            public Object invoke(final Object ignoreSelf, final Method method, final Object[] args) throws Throwable {
-                checkState(method.getReturnType()==Boolean.TYPE);
-                Boolean lastSuccess = Boolean.FALSE;
-                for (final Object entry : list) {
-                    if (clazz.isInstance(entry)) {
-                        final Object result = method.invoke(entry, args);
-                        if (Boolean.TRUE.equals(result)) {
-                            lastSuccess = Boolean.TRUE;
-                        }
-                    }
+    /**
+     * @return true if the call succeeds on any element, all elements are called.
+     */
+    public static <T, A> boolean lastSuccess(final Test<T, A> test, final Iterable<?> list, final A argument) {
+        final Class<T> type = test.getType();
+        boolean success = false;
+        if (list instanceof RandomAccess && list instanceof List) {
+            final List<?> entries = (List<?>) list;
+            for (int i = 0; i < entries.size(); i++) {
+                final Object entry = entries.get(i);
+                if (type.isInstance(entry) && test.call(type.cast(entry), argument)) {
+                    success = true;
+                }
+            }
+        } else {
+            for (final Object entry : list) {
+                if (type.isInstance(entry) && test.call(type.cast(entry), argument)) {
+                    success = true;
                 }
-                return lastSuccess;
             }
-        }));
+        }
+        return success;
     }
 }
@@ -1,21 +1,22 @@
 package org.hilo.core.utils;
 
-import com.google.common.base.Function;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
@@ -24,120 +25,495 @@ import java.util.concurrent.atomic.AtomicReference;
 import static com.google.common.base.Preconditions.*;
 
 /**
+ * Records calls of an interface to a tape and plays them back to another implementation of the interface.
+ * <p/>
+ * Tape starts with names of recorded methods, their position is the method id. A call is its id followed by
+ * arguments: ints and longs as zigzag varints, floats and doubles as fixed bits, strings as UTF-8 bytes.
+ * Methods are resolved once per tape, calls are played through cached method handles.
+ *
  * @author dmitry.mamonov
  *         Created: 11/3/13 6:38 PM
  */
 public class Recorder {
-    public static <R> R recorder(final Class<R> clazz, final DataOutput tape) {
-        final AtomicReference<R> self = new AtomicReference<>(null);
-        final R result = clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, new InvocationHandler() {
-            private final TreeMap<String, Integer> methods = new TreeMap<>();
-
-            {
-                int index = 0;
-                for (final Method method : clazz.getMethods()) {
-                    final Class<?> returnType = method.getReturnType();
-                    if (returnType == Void.TYPE || returnType == clazz) {
-                        checkState(!methods.containsKey(method.getName()));
-                        methods.put(method.getName(), index++);
-                    }
-                }
-                try {
-                    tape.writeInt(methods.size());
-                    for (final Map.Entry<String, Integer> entry : methods.entrySet()) {
-                        tape.writeUTF(entry.getKey());
-                        tape.writeInt(entry.getValue());
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+    /**
+     * Argument types which may be recorded.
+     */
+    private enum Kind {
+        INT, LONG, FLOAT, DOUBLE, BOOLEAN, STRING;
 
+        static Kind of(final Class<?> type, final Method method) {
+            if (type == Integer.TYPE) {
+                return INT;
+            } else if (type == Long.TYPE) {
+                return LONG;
+            } else if (type == Float.TYPE) {
+                return FLOAT;
+            } else if (type == Double.TYPE) {
+                return DOUBLE;
+            } else if (type == Boolean.TYPE) {
+                return BOOLEAN;
+            } else if (type == String.class) {
+                return STRING;
+            } else {
+                throw new IllegalArgumentException("Wrong argument type: " + type + " of method " + method);
             }
+        }
+    }
+
+    /**
+     * Recorded method: its id and kinds of arguments.
+     */
+    private static final class Call {
+        private final int id;
+        private final Kind[] kinds;
+        private final boolean chained;
+
+        private Call(final int id, final Method method, final Class<?> clazz) {
+            this.id = id;
+            final Class<?>[] types = method.getParameterTypes();
+            this.kinds = new Kind[types.length];
+            for (int i = 0; i < types.length; i++) {
+                kinds[i] = Kind.of(types[i], method);
+            }
+            this.chained = method.getReturnType() == clazz;
+        }
+    }
+
+    /**
+     * @return methods which may be recorded, by name, ids are assigned in name order.
+     */
+    private static Map<String, Method> methods(final Class<?> clazz) {
+        final Map<String, Method> methods = new TreeMap<>();
+        for (final Method method : clazz.getMethods()) {
+            final Class<?> returnType = method.getReturnType();
+            if (returnType == Void.TYPE || returnType == clazz) {
+                checkState(!methods.containsKey(method.getName()), "Overloaded method %s", method.getName());
+                methods.put(method.getName(), method);
+            }
+        }
+        return methods;
+    }
 
+    /**
+     * Creates a recorder, method names are written to the tape at once. Not thread safe.
+     */
+    public static <R> R recorder(final Class<R> clazz, final Output tape) {
+        final Map<Method, Call> calls = new HashMap<>();
+        try {
+            final Map<String, Method> methods = methods(clazz);
+            tape.writeVarInt(methods.size());
+            for (final Method method : methods.values()) {
+                calls.put(method, new Call(calls.size(), method, clazz));
+                tape.writeString(method.getName());
+            }
+            tape.endHeader();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        final AtomicReference<R> self = new AtomicReference<>(null);
+        final R result = clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, new InvocationHandler() {
             @Override
             public Object invoke(final Object o, final Method method, final Object[] objects) throws Throwable {
-                final Class<?> returnType = method.getReturnType();
-                checkArgument(returnType == Void.TYPE ||returnType==clazz);
-                final String methodName = method.getName();
-                tape.writeInt(checkNotNull(methods.get(methodName), methodName));
-                if (objects != null) {
-                    for (final Object param : objects) {
-                        if (param instanceof Integer) {
-                            tape.writeInt((Integer) param);
-                        } else if (param instanceof Float) {
-                            tape.writeFloat((Float) param);
-                        } else if (param instanceof Double) {
-                            tape.writeDouble((Double) param);
-                        } else if (param instanceof Boolean) {
-                            tape.writeBoolean((Boolean) param);
-                        } else if (param instanceof String) {
-                            tape.writeUTF((String) param);
-                        } else {
-                            throw new IllegalArgumentException("Wrong argument: " + param + " of type " + (param != null ? param.getClass() : null));
-                        }
+                final Call call = calls.get(method);
+                if (call == null) {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(this, objects);
                     }
+                    throw new IllegalArgumentException("Method can't be recorded: " + method);
                 }
-                if (returnType == clazz) {
-                    return self.get();
-                } else {
-                    return null;
+                tape.writeVarInt(call.id);
+                final Kind[] kinds = call.kinds;
+                for (int i = 0; i < kinds.length; i++) {
+                    switch (kinds[i]) {
+                        case INT:
+                            tape.writeInt((Integer) objects[i]);
+                            break;
+                        case LONG:
+                            tape.writeLong((Long) objects[i]);
+                            break;
+                        case FLOAT:
+                            tape.writeFloat((Float) objects[i]);
+                            break;
+                        case DOUBLE:
+                            tape.writeDouble((Double) objects[i]);
+                            break;
+                        case BOOLEAN:
+                            tape.writeBoolean((Boolean) objects[i]);
+                            break;
+                        case STRING:
+                            tape.writeString(checkNotNull((String) objects[i], "Null argument of %s", method));
+                            break;
+                    }
                 }
+                tape.endCall();
+                return call.chained ? self.get() : null;
             }
         }));
         self.set(result);
         return result;
     }
 
-    public static <R> void play(final Class<R> clazz, final R face, final DataInput tape) {
+    public static <R> void play(final Class<R> clazz, final R face, final InputStream tape) {
+        play(clazz, face, new Input(tape));
+    }
+
+    /**
+     * Plays all calls of the tape to the face.
+     */
+    public static <R> void play(final Class<R> clazz, final R face, final Input tape) {
+        play(clazz, face, tape, tape, 0L);
+    }
+
+    /**
+     * Plays calls to the face, names of methods are read from the header first.
+     *
+     * @param skip number of first calls which are read, but not played.
+     */
+    public static <R> void play(final Class<R> clazz, final R face, final Input header, final Input tape, final long skip) {
         try {
-            final Map<String, Method> nameToMethodMap = Maps.uniqueIndex(ImmutableList.copyOf(clazz.getMethods()), new Function<Method, String>() {
+            final Map<String, Method> methods = methods(clazz);
+            final int methodsCount = header.readVarInt();
+            final Kind[][] kinds = new Kind[methodsCount][];
+            final MethodHandle[] handles = new MethodHandle[methodsCount];
+            final Object[][] params = new Object[methodsCount][];
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            for (int i = 0; i < methodsCount; i++) {
+                final String methodName = header.readString();
+                final Method method = checkNotNull(methods.get(methodName), "Method not found: %s", methodName);
+                method.setAccessible(true);
+                kinds[i] = new Call(i, method, clazz).kinds;
+                handles[i] = lookup.unreflect(method)
+                        .bindTo(face)
+                        .asType(MethodType.genericMethodType(kinds[i].length).changeReturnType(Void.TYPE))
+                        .asSpreader(Object[].class, kinds[i].length);
+                params[i] = new Object[kinds[i].length];
+            }
+            long skipped = 0;
+            while (tape.hasMore()) {
+                final int key = tape.readVarInt();
+                checkElementIndex(key, methodsCount, "Method key");
+                final Object[] values = params[key];
+                final Kind[] types = kinds[key];
+                for (int i = 0; i < types.length; i++) {
+                    switch (types[i]) {
+                        case INT:
+                            values[i] = tape.readInt();
+                            break;
+                        case LONG:
+                            values[i] = tape.readLong();
+                            break;
+                        case FLOAT:
+                            values[i] = tape.readFloat();
+                            break;
+                        case DOUBLE:
+                            values[i] = tape.readDouble();
+                            break;
+                        case BOOLEAN:
+                            values[i] = tape.readBoolean();
+                            break;
+                        case STRING:
+                            values[i] = tape.readString();
+                            break;
+                    }
+                }
+                if (skipped < skip) {
+                    skipped++;
+                } else {
+                    handles[key].invokeExact(values);
+                }
+            }
+        } catch (Throwable th) {
+            throw Throwables.propagate(th);
+        }
+    }
+
+    /**
+     * Destination of a recorded tape, see {@link TapeFile.Writer}.
+     */
+    public interface Sink {
+        /**
+         * Names of methods, written once before any block.
+         */
+        void header(byte[] data, int length) throws IOException;
+
+        /**
+         * Block of whole calls.
+         */
+        void block(byte[] data, int length, int calls) throws IOException;
+
+        void flush() throws IOException;
+    }
+
+    /**
+     * Tape being recorded: values are collected in a reusable buffer, which is written to the sink as a block
+     * once it is full or flushed, so blocks end on call boundaries.
+     */
+    public static final class Output {
+        private static final int BLOCK_SIZE = 8192;
+
+        private final Sink sink;
+        private final int blockSize;
+        private byte[] buffer;
+        private int position = 0;
+        private int calls = 0;
+
+        public Output(final OutputStream out) {
+            this(out, BLOCK_SIZE);
+        }
+
+        /**
+         * Tape written to the stream as is, the stream is flushed after each block.
+         */
+        public Output(final OutputStream out, final int blockSize) {
+            this(new Sink() {
                 @Override
-                public String apply(final Method method) {
-                    return method.getName();
+                public void header(final byte[] data, final int length) throws IOException {
+                    out.write(data, 0, length);
                 }
-            });
-            final int methodsCount = tape.readInt();
-            final Map<Integer, Method> keyToMethodMap = new HashMap<>();
-            for (int i = 0; i < methodsCount; i++) {
-                final String methodName = tape.readUTF();
-                final int methodKey = tape.readInt();
-                final Method method = checkNotNull(nameToMethodMap.get(methodName), "Method not found: %s", methodName);
-                keyToMethodMap.put(methodKey, method);
-            }
-            while (true) {
-                final Method method;
-                try {
-                    final int key = tape.readInt();
-                    method = checkNotNull(keyToMethodMap.get(key), "Can't find method by key %s", key);
-                } catch (EOFException e) {
-                    return;
+
+                @Override
+                public void block(final byte[] data, final int length, final int calls) throws IOException {
+                    out.write(data, 0, length);
+                    out.flush();
                 }
-                final Class<?>[] parameterTypes = method.getParameterTypes();
-                final Object[] params = new Object[parameterTypes.length];
-                int index = 0;
-                for (final Class<?> paramType : parameterTypes) {
-                    if (paramType == Integer.TYPE) {
-                        params[index] = tape.readInt();
-                    } else if (paramType == Float.TYPE) {
-                        params[index] = tape.readFloat();
-                    } else if (paramType == Double.TYPE) {
-                        params[index] = tape.readDouble();
-                    } else if (paramType == Boolean.TYPE) {
-                        params[index] = tape.readBoolean();
-                    } else if (paramType == String.class) {
-                        params[index] = tape.readUTF();
-                    } else {
-                        throw new IllegalArgumentException("Wrong argument type: " + paramType + " of method " + method);
-                    }
-                    index++;
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
                 }
-                method.invoke(face, params);
+            }, blockSize);
+        }
+
+        public Output(final Sink sink, final int blockSize) {
+            checkArgument(blockSize > 0, "Wrong block size: %s", blockSize);
+            this.sink = sink;
+            this.blockSize = blockSize;
+            this.buffer = new byte[blockSize + 64];
+        }
+
+        private void ensure(final int size) {
+            if (position + size > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + size));
             }
-        } catch (InvocationTargetException | IllegalAccessException | IOException e) {
-            throw new RuntimeException(e);
+        }
+
+        public void writeVarInt(final int value) {
+            ensure(5);
+            int rest = value;
+            while ((rest & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((rest & 0x7F) | 0x80);
+                rest >>>= 7;
+            }
+            buffer[position++] = (byte) rest;
+        }
+
+        public void writeVarLong(final long value) {
+            ensure(10);
+            long rest = value;
+            while ((rest & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((rest & 0x7F) | 0x80);
+                rest >>>= 7;
+            }
+            buffer[position++] = (byte) rest;
+        }
+
+        public void writeInt(final int value) {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        public void writeLong(final long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        public void writeFloat(final float value) {
+            writeFixed(Float.floatToIntBits(value), 4);
+        }
+
+        public void writeDouble(final double value) {
+            writeFixed(Double.doubleToLongBits(value), 8);
+        }
+
+        private void writeFixed(final long bits, final int size) {
+            ensure(size);
+            for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (bits >>> shift);
+            }
+        }
+
+        public void writeBoolean(final boolean value) {
+            ensure(1);
+            buffer[position++] = (byte) (value ? 1 : 0);
+        }
+
+        public void writeString(final String value) {
+            final byte[] bytes = value.getBytes(Charsets.UTF_8);
+            writeVarInt(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void endHeader() throws IOException {
+            sink.header(buffer, position);
+            position = 0;
+        }
+
+        /**
+         * Ends a call, writes the block if it is full.
+         */
+        void endCall() throws IOException {
+            calls++;
+            if (position >= blockSize) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (position > 0) {
+                sink.block(buffer, position, calls);
+                position = 0;
+                calls = 0;
+                if (buffer.length > blockSize * 4) {
+                    buffer = new byte[blockSize + 64];
+                }
+            }
+        }
+
+        /**
+         * Writes collected calls as a block and flushes the sink.
+         */
+        public void flush() throws IOException {
+            writeBlock();
+            sink.flush();
         }
     }
 
+    /**
+     * Tape being played, decoded straight from a byte buffer, which is refilled from a stream if there is one.
+     */
+    public static final class Input {
+        private static final int BLOCK_SIZE = 8192;
+
+        private final ByteBuffer buffer;
+        private final InputStream in;
+
+        /**
+         * Tape of the remaining bytes of the buffer.
+         */
+        public Input(final ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.in = null;
+        }
+
+        public Input(final InputStream in) {
+            this.buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            buffer.flip();
+            this.in = in;
+        }
+
+        /**
+         * Reads more bytes from the stream.
+         *
+         * @return false if the stream is over.
+         */
+        private boolean fill() throws IOException {
+            if (in == null) {
+                return false;
+            }
+            buffer.compact();
+            try {
+                final int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (read > 0) {
+                    buffer.position(buffer.position() + read);
+                }
+                return read > 0;
+            } finally {
+                buffer.flip();
+            }
+        }
+
+        private void require(final int size) throws IOException {
+            while (buffer.remaining() < size) {
+                if (!fill()) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        public boolean hasMore() throws IOException {
+            return buffer.hasRemaining() || fill();
+        }
+
+        private byte readByte() throws IOException {
+            if (!buffer.hasRemaining()) {
+                require(1);
+            }
+            return buffer.get();
+        }
+
+        public int readVarInt() throws IOException {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                final byte b = readByte();
+                result |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        public long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                final byte b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        public int readInt() throws IOException {
+            final int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public long readLong() throws IOException {
+            final long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public float readFloat() throws IOException {
+            require(4);
+            return buffer.getFloat();
+        }
+
+        public double readDouble() throws IOException {
+            require(8);
+            return buffer.getDouble();
+        }
+
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        public String readString() throws IOException {
+            final int length = readVarInt();
+            final byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                if (!buffer.hasRemaining()) {
+                    require(1);
+                }
+                final int chunk = Math.min(length - read, buffer.remaining());
+                buffer.get(bytes, read, chunk);
+                read += chunk;
+            }
+            return new String(bytes, Charsets.UTF_8);
+        }
+    }
 
     private interface TestFace {
         TestFace newLine();
@@ -147,13 +523,15 @@ public class Recorder {
         TestFace printPosition(int x, int y);
     }
 
-    public static void main(final String[] args) {
+    public static void main(final String[] args) throws IOException {
         final ByteArrayOutputStream tapeBuffer = new ByteArrayOutputStream();
-        final TestFace recorder = recorder(TestFace.class, new DataOutputStream(tapeBuffer));
+        final Output tape = new Output(tapeBuffer);
+        final TestFace recorder = recorder(TestFace.class, tape);
         recorder.print("Hello at position: ")
-                .printPosition(100, 100)
+                .printPosition(100, -100)
                 .newLine()
                 .print("That's it");
+        tape.flush();
         play(TestFace.class, new TestFace() {
             @Override
             public TestFace newLine() {
@@ -172,6 +550,6 @@ public class Recorder {
                 System.out.print(String.format("(%d,%d)", x, y));
                 return this;
             }
-        }, new DataInputStream(new ByteArrayInputStream(tapeBuffer.toByteArray())));
+        }, new ByteArrayInputStream(tapeBuffer.toByteArray()));
     }
 }
@@ -4,10 +4,50 @@ import java.util.List;
 import java.util.Random;
 
 /**
+ * Random numbers of the game, same generator as {@link Random} with a state that can be saved and restored,
+ * so runs from the same state and inputs are repeatable. Not thread safe, used on the game thread.
+ *
  * @author dmitry.mamonov
  *         Created: 11/2/13 5:16 PM
  */
 public class Rnd extends Random {
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+
+    /**
+     * Assigned by {@link #setSeed(long)}, which is called by the super constructor.
+     */
+    private long state;
+
+    public Rnd() {
+        super();
+    }
+
+    public Rnd(final long seed) {
+        super(seed);
+    }
+
+    @Override
+    public void setSeed(final long seed) {
+        super.setSeed(seed);
+        this.state = (seed ^ MULTIPLIER) & MASK;
+    }
+
+    @Override
+    protected int next(final int bits) {
+        state = (state * MULTIPLIER + ADDEND) & MASK;
+        return (int) (state >>> (48 - bits));
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    public void setState(final long state) {
+        this.state = state & MASK;
+    }
+
     public <T> T nextItem(final List<T> items) {
         return items.get(nextInt(items.size()));
     }
@@ -0,0 +1,325 @@
+package org.hilo.core.utils;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * {@link Recorder} tape in a series of segment files {@code <name>.000000.tape}, {@code <name>.000001.tape}...
+ * <p/>
+ * Segments are appended to and rolled over once they reach their size, each one starts with names of methods,
+ * so it may be played on its own, and ends with an index of its blocks: offset and number of the first call.
+ * Room for the index is reserved, so a segment including its index does not exceed the segment size,
+ * unless its first block alone does.
+ * Segments are played from memory mapped files, calls are decoded straight from the mapping,
+ * so tapes much larger than the heap are played at the speed of the disk.
+ */
+public final class TapeFile {
+    private static final int MAGIC = 0x48494C54; //"HILT"
+    private static final int VERSION = 1;
+    private static final int INDEX_MAGIC = 0x48494C58; //"HILX"
+    /**
+     * Magic, version and length of the header.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 4;
+    private static final int FOOTER_SIZE = 8 + 4;
+    /**
+     * Offset and number of the first call of a block in the index.
+     */
+    private static final int INDEX_ENTRY_SIZE = 8 + 8;
+    private static final long SEGMENT_SIZE = 64L << 20;
+
+    private TapeFile() {
+    }
+
+    /**
+     * @return size of the index of given number of blocks: count, entries, number of calls and footer.
+     */
+    private static int indexSize(final int blocks) {
+        return 4 + blocks * INDEX_ENTRY_SIZE + 8 + FOOTER_SIZE;
+    }
+
+    private static File segmentFile(final File directory, final String name, final int number) {
+        return new File(directory, String.format("%s.%06d.tape", name, number));
+    }
+
+    /**
+     * Appends blocks of a tape to segment files, see {@link Recorder.Output#Output(Recorder.Sink, int)}.
+     * Existing segments of the tape are replaced.
+     */
+    public static final class Writer implements Recorder.Sink, Closeable {
+        private final File directory;
+        private final String name;
+        private final long segmentSize;
+        private byte[] header = null;
+        private int number = -1;
+        private FileChannel channel = null;
+        private long size = 0L;
+        private long calls = 0L;
+        private long[] blockOffsets = new long[1024];
+        private long[] blockCalls = new long[1024];
+        private int blocks = 0;
+
+        public Writer(final File directory, final String name) throws IOException {
+            this(directory, name, SEGMENT_SIZE);
+        }
+
+        public Writer(final File directory, final String name, final long segmentSize) throws IOException {
+            checkArgument(segmentSize > HEADER_SIZE && segmentSize <= Integer.MAX_VALUE, "Wrong segment size: %s", segmentSize);
+            this.directory = directory;
+            this.name = name;
+            this.segmentSize = segmentSize;
+            for (final File segment : files(directory, name)) {
+                if (!segment.delete()) {
+                    throw new IOException("Failed to delete " + segment);
+                }
+            }
+        }
+
+        @Override
+        public void header(final byte[] data, final int length) throws IOException {
+            checkState(header == null, "Header is written already");
+            header = Arrays.copyOf(data, length);
+            openSegment();
+        }
+
+        @Override
+        public void block(final byte[] data, final int length, final int calls) throws IOException {
+            checkState(channel != null, "Header is not written");
+            if (blocks > 0 && size + length + indexSize(blocks + 1) > segmentSize) {
+                closeSegment();
+                openSegment();
+            }
+            if (blocks == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+                blockCalls = Arrays.copyOf(blockCalls, blocks * 2);
+            }
+            blockOffsets[blocks] = size;
+            blockCalls[blocks] = this.calls;
+            blocks++;
+            write(ByteBuffer.wrap(data, 0, length));
+            this.calls += calls;
+        }
+
+        /**
+         * Blocks are written to the file at once, nothing to flush.
+         */
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                closeSegment();
+            }
+        }
+
+        private void write(final ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                size += channel.write(data);
+            }
+        }
+
+        private void openSegment() throws IOException {
+            number++;
+            channel = new RandomAccessFile(segmentFile(directory, name, number), "rw").getChannel();
+            size = 0L;
+            blocks = 0;
+            final ByteBuffer start = ByteBuffer.allocate(HEADER_SIZE + header.length);
+            start.putInt(MAGIC).putInt(VERSION).putInt(header.length).put(header).flip();
+            write(start);
+        }
+
+        private void closeSegment() throws IOException {
+            final long indexOffset = size;
+            final ByteBuffer index = ByteBuffer.allocate(indexSize(blocks));
+            index.putInt(blocks);
+            for (int block = 0; block < blocks; block++) {
+                index.putLong(blockOffsets[block]).putLong(blockCalls[block]);
+            }
+            index.putLong(calls).putLong(indexOffset).putInt(INDEX_MAGIC).flip();
+            write(index);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Segment of a tape with its index. Index of a segment which was not closed is empty.
+     */
+    public static final class Segment {
+        private final File file;
+        private final int headerLength;
+        /**
+         * End of blocks, offset of the index if there is one.
+         */
+        private final long end;
+        private final long[] blockOffsets;
+        private final long[] blockCalls;
+        private final long firstCall;
+        private final long lastCall;
+
+        /**
+         * @param firstCall number of the first call if the segment is not indexed.
+         */
+        private Segment(final File file, final long firstCall) throws IOException {
+            this.file = file;
+            try (final RandomAccessFile source = new RandomAccessFile(file, "r")) {
+                final FileChannel channel = source.getChannel();
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0L);
+                header.flip();
+                if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                    throw new IOException("Not a tape segment: " + file);
+                }
+                final int version = header.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported tape version " + version + ": " + file);
+                }
+                this.headerLength = header.getInt();
+                final long size = channel.size();
+                final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                if (size >= HEADER_SIZE + headerLength + FOOTER_SIZE && channel.read(footer, size - FOOTER_SIZE) == FOOTER_SIZE
+                        && footer.getInt(8) == INDEX_MAGIC) {
+                    this.end = footer.getLong(0);
+                    final MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, end, size - FOOTER_SIZE - end);
+                    final int blocks = index.getInt();
+                    this.blockOffsets = new long[blocks];
+                    this.blockCalls = new long[blocks];
+                    for (int block = 0; block < blocks; block++) {
+                        blockOffsets[block] = index.getLong();
+                        blockCalls[block] = index.getLong();
+                    }
+                    this.lastCall = index.getLong();
+                    this.firstCall = blocks > 0 ? blockCalls[0] : lastCall;
+                } else {
+                    this.end = size;
+                    this.blockOffsets = new long[0];
+                    this.blockCalls = new long[0];
+                    this.firstCall = firstCall;
+                    this.lastCall = -1L;
+                }
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isIndexed() {
+            return lastCall >= 0;
+        }
+
+        /**
+         * @return number of the first call of the segment in the tape.
+         */
+        public long getFirstCall() {
+            return firstCall;
+        }
+
+        /**
+         * @return number of the call after the last one of the segment, -1 if the segment is not indexed.
+         */
+        public long getLastCall() {
+            return lastCall;
+        }
+
+        private MappedByteBuffer map(final long from, final long to) throws IOException {
+            try (final RandomAccessFile source = new RandomAccessFile(file, "r")) {
+                return source.getChannel().map(FileChannel.MapMode.READ_ONLY, from, to - from);
+            }
+        }
+
+        /**
+         * @return calls of the segment, decoded from the mapped file.
+         */
+        public Recorder.Input input() throws IOException {
+            return new Recorder.Input(map(HEADER_SIZE, end));
+        }
+
+        /**
+         * Plays calls of the segment to the face, starting from the call by its number in the tape.
+         * Blocks before the one holding the call are not read.
+         */
+        public <R> void play(final Class<R> clazz, final R face, final long fromCall) throws IOException {
+            int block = 0;
+            while (block + 1 < blockCalls.length && blockCalls[block + 1] <= fromCall) {
+                block++;
+            }
+            if (block >= blockCalls.length) {
+                final Recorder.Input calls = input();
+                Recorder.play(clazz, face, calls, calls, Math.max(0L, fromCall - firstCall));
+            } else {
+                final Recorder.Input header = new Recorder.Input(map(HEADER_SIZE, HEADER_SIZE + headerLength));
+                final Recorder.Input calls = new Recorder.Input(map(blockOffsets[block], end));
+                Recorder.play(clazz, face, header, calls, Math.max(0L, fromCall - blockCalls[block]));
+            }
+        }
+    }
+
+    private static List<File> files(final File directory, final String name) {
+        final Pattern pattern = Pattern.compile(Pattern.quote(name) + "\\.\\d{6}\\.tape");
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String file) {
+                return pattern.matcher(file).matches();
+            }
+        });
+        if (files == null) {
+            return ImmutableList.of();
+        }
+        Arrays.sort(files);
+        return ImmutableList.copyOf(files);
+    }
+
+    /**
+     * @return segments of the tape in order.
+     */
+    public static List<Segment> segments(final File directory, final String name) throws IOException {
+        final ImmutableList.Builder<Segment> segments = ImmutableList.builder();
+        long firstCall = 0L;
+        for (int number = 0; segmentFile(directory, name, number).isFile(); number++) {
+            final Segment segment = new Segment(segmentFile(directory, name, number), firstCall);
+            segments.add(segment);
+            firstCall = segment.getLastCall();
+        }
+        return segments.build();
+    }
+
+    /**
+     * Plays all calls of the tape to the face.
+     */
+    public static <R> void play(final Class<R> clazz, final R face, final File directory, final String name) throws IOException {
+        play(clazz, face, directory, name, 0L);
+    }
+
+    /**
+     * Plays calls of the tape to the face starting from the call by its number, segments before it are not read.
+     */
+    public static <R> void play(final Class<R> clazz, final R face, final File directory, final String name, final long fromCall) throws IOException {
+        final List<Segment> segments = segments(directory, name);
+        if (segments.isEmpty()) {
+            throw new FileNotFoundException("No segments of tape " + name + " in " + directory);
+        }
+        for (final Segment segment : segments) {
+            if (segment.isIndexed() && segment.getLastCall() <= fromCall) {
+                continue;
+            }
+            segment.play(clazz, face, fromCall);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.hilo.core.engine;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.hilo.core.utils.Rnd;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GameMapRegionsTest {
+    private static final int TICKS = 500;
+    private static final List<String> MAP = ImmutableList.of(
+            "WWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWW",
+            "W   *    *                      }      W",
+            "W   T  e      X          X      ^W     W",
+            "W   >>>>>>>>>>>>>>>>>>>>     >>>>W     W",
+            "W             K K --W   W  ><<<<<<<<   W",
+            "W               W  ^W   W  T           W",
+            "W          X       ^W~~~W D   E  K   _ W",
+            "W             H    ^ SSS *H WWWWWWWWWWWW",
+            "W        -----H----^----- H   *    *   W",
+            "WggggggggW    H    ^      H------T     W",
+            "WWWWWWWWWW    H  W--------HW     W     W",
+            "W   E    D  K PT D       E D  __SSS   TW",
+            "WWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWW");
+
+    @Test
+    public void regionsMatchForAnyThreadCount() {
+        for (final int rows : new int[]{2, 5}) {
+            final long[] single = run(rows, 1);
+            final long[] pooled = run(rows, 4);
+            for (int tick = 0; tick < TICKS; tick++) {
+                assertEquals("tick " + tick + " of " + rows + " rows regions", single[tick], pooled[tick]);
+            }
+        }
+    }
+
+    @Test
+    public void regionsTickAtOnce() {
+        final Injector injector = Guice.createInjector(new HiloModule());
+        final GameMap map = injector.getInstance(GameMap.class);
+        final GameTime time = injector.getInstance(GameTime.class);
+        map.setRegions(2, 2);
+        map.init(MAP.get(0).length(), MAP);
+        //rows 1 and 5 are in regions 0 and 2, which run at once.
+        final Probe upper = map.set(new GameMap.Position(1, 1)).create(Probe.class);
+        final Probe lower = map.set(new GameMap.Position(1, 5)).create(Probe.class);
+        time.tick();
+        map.applyOperations();
+        assertTrue(upper.passed && lower.passed);
+    }
+
+    /**
+     * Probes wait for each other on their first tick, so they pass only if their regions tick at once.
+     */
+    public static class Probe extends GameMap.MapUnit {
+        private static final CyclicBarrier BARRIER = new CyclicBarrier(2);
+        private boolean passed = false;
+
+        @Override
+        public void onTick() {
+            if (!passed) {
+                try {
+                    BARRIER.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+                    throw new IllegalStateException("Probes did not tick at once", e);
+                }
+                passed = true;
+            }
+        }
+
+        @Override
+        public View render() {
+            return new View(null, null, '?', false);
+        }
+    }
+
+    /**
+     * @return world hash after each tick.
+     */
+    private static long[] run(final int regionRows, final int regionThreads) {
+        final Injector injector = Guice.createInjector(new HiloModule());
+        injector.getInstance(Rnd.class).setSeed(7);
+        final GameMap map = injector.getInstance(GameMap.class);
+        final GameTime time = injector.getInstance(GameTime.class);
+        injector.getInstance(AI.Randomized.class);
+        map.setRegions(regionRows, regionThreads);
+        map.init(MAP.get(0).length(), MAP);
+        final long[] hashes = new long[TICKS];
+        for (int tick = 0; tick < TICKS; tick++) {
+            time.tick();
+            map.applyOperations();
+            hashes[tick] = map.getHash();
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,110 @@
+package org.hilo.core.utils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares {@link ListProxy} broadcasts with the reflective proxies they replaced,
+ * on cell sized lists of mixed units as used by fluids, ammo and actors.
+ */
+public class ListProxyBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int CALLS = 2000000;
+
+    public interface Target {
+        ListProxy.IntCall<Target> HIT = new ListProxy.IntCall<Target>(Target.class) {
+            @Override
+            public void call(final Target target, final int value) {
+                target.hit(value);
+            }
+        };
+        ListProxy.Test<Target, Integer> ACCEPT = new ListProxy.Test<Target, Integer>(Target.class) {
+            @Override
+            public boolean call(final Target target, final Integer value) {
+                return target.accept(value);
+            }
+        };
+
+        void hit(int value);
+
+        boolean accept(Integer value);
+    }
+
+    private static class Unit implements Target {
+        private long sum = 0;
+
+        @Override
+        public void hit(final int value) {
+            sum += value;
+        }
+
+        @Override
+        public boolean accept(final Integer value) {
+            sum++;
+            return sum % 7 == value;
+        }
+    }
+
+    public static void main(final String[] args) {
+        final List<Object> cell = new ArrayList<>();
+        cell.add(new Object());
+        cell.add(new Unit());
+        cell.add(new Unit());
+        final List<Object> list = Collections.unmodifiableList(cell);
+        final Integer zero = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            int successes = 0;
+            for (int i = 0; i < CALLS; i++) {
+                legacyAllVoid(Target.class, list).hit(i);
+                if (legacyFirstSuccess(Target.class, list).accept(zero)) {
+                    successes++;
+                }
+            }
+            final long legacy = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                ListProxy.allVoid(Target.HIT, list, i);
+                if (ListProxy.firstSuccess(Target.ACCEPT, list, zero)) {
+                    successes++;
+                }
+            }
+            final long broadcast = System.nanoTime() - start;
+            System.out.println(String.format("round %d: proxy %d ns/call, broadcast %d ns/call (%d)",
+                    round, legacy / CALLS / 2, broadcast / CALLS / 2, successes));
+        }
+    }
+
+    private static <T> T legacyAllVoid(final Class<T> clazz, final Iterable<?> list) {
+        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[]{clazz}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object ignoreSelf, final Method method, final Object[] args) throws Throwable {
+                for (final Object entry : list) {
+                    if (clazz.isInstance(entry)) {
+                        method.invoke(entry, args);
+                    }
+                }
+                return null;
+            }
+        }));
+    }
+
+    private static <T> T legacyFirstSuccess(final Class<T> clazz, final Iterable<?> list) {
+        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[]{clazz}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object ignoreSelf, final Method method, final Object[] args) throws Throwable {
+                for (final Object entry : list) {
+                    if (clazz.isInstance(entry) && Boolean.TRUE.equals(method.invoke(entry, args))) {
+                        return Boolean.TRUE;
+                    }
+                }
+                return Boolean.FALSE;
+            }
+        }));
+    }
+}
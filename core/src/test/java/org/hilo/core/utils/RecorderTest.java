@@ -0,0 +1,104 @@
+package org.hilo.core.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecorderTest {
+    private static final int[] INTS = {0, 1, -1, 63, -64, 64, -65, Integer.MAX_VALUE, Integer.MIN_VALUE};
+    private static final long[] LONGS = {0L, 1L, -1L, Integer.MIN_VALUE - 1L, Long.MAX_VALUE, Long.MIN_VALUE};
+
+    public interface Face {
+        Face ints(int value);
+
+        Face longs(long value);
+
+        void mixed(float f, double d, boolean b, String s);
+    }
+
+    /**
+     * Collects calls as strings.
+     */
+    static class Log implements Face {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public Face ints(final int value) {
+            calls.add("ints " + value);
+            return this;
+        }
+
+        @Override
+        public Face longs(final long value) {
+            calls.add("longs " + value);
+            return this;
+        }
+
+        @Override
+        public void mixed(final float f, final double d, final boolean b, final String s) {
+            calls.add("mixed " + f + " " + d + " " + b + " " + s);
+        }
+    }
+
+    @Test
+    public void zigzagVarintsRoundTrip() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Recorder.Output out = new Recorder.Output(bytes);
+        for (final int value : INTS) {
+            out.writeInt(value);
+        }
+        for (final long value : LONGS) {
+            out.writeLong(value);
+        }
+        out.flush();
+        final Recorder.Input in = new Recorder.Input(new ByteArrayInputStream(bytes.toByteArray()));
+        for (final int value : INTS) {
+            assertEquals(value, in.readInt());
+        }
+        for (final long value : LONGS) {
+            assertEquals(value, in.readLong());
+        }
+        assertEquals(false, in.hasMore());
+    }
+
+    @Test
+    public void callsRoundTrip() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Recorder.Output out = new Recorder.Output(bytes, 16);
+        final Log expected = new Log();
+        record(Recorder.recorder(Face.class, out), expected);
+        flush(out);
+        final Log played = new Log();
+        Recorder.play(Face.class, played, new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(expected.calls, played.calls);
+    }
+
+    static void record(final Face recorder, final Log expected) {
+        for (final int value : INTS) {
+            recorder.ints(value).longs(value);
+            expected.ints(value).longs(value);
+        }
+        for (final long value : LONGS) {
+            recorder.longs(value);
+            expected.longs(value);
+        }
+        recorder.mixed(-0.5f, Double.MIN_VALUE, true, "привет");
+        expected.mixed(-0.5f, Double.MIN_VALUE, true, "привет");
+        recorder.mixed(Float.NaN, -1e300, false, "");
+        expected.mixed(Float.NaN, -1e300, false, "");
+    }
+
+    static void flush(final Recorder.Output out) {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
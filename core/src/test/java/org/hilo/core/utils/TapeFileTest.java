@@ -0,0 +1,86 @@
+package org.hilo.core.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TapeFileTest {
+    private static final String NAME = "test";
+    private static final int SEGMENT_SIZE = 512;
+    private static final int BLOCK_SIZE = 48;
+    private static final int ROUNDS = 40;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void segmentsRollOver() throws IOException {
+        final File directory = folder.newFolder("tape");
+        final RecorderTest.Log expected = record(directory, true);
+        final List<TapeFile.Segment> segments = TapeFile.segments(directory, NAME);
+        assertTrue(segments.size() > 1);
+        long firstCall = 0L;
+        for (final TapeFile.Segment segment : segments) {
+            assertTrue(segment.isIndexed());
+            assertTrue(segment.getFile().length() <= SEGMENT_SIZE);
+            assertEquals(firstCall, segment.getFirstCall());
+            firstCall = segment.getLastCall();
+        }
+        assertEquals(expected.calls.size(), firstCall);
+        final RecorderTest.Log played = new RecorderTest.Log();
+        TapeFile.play(RecorderTest.Face.class, played, directory, NAME);
+        assertEquals(expected.calls, played.calls);
+    }
+
+    @Test
+    public void playFromCall() throws IOException {
+        final File directory = folder.newFolder("tape");
+        final RecorderTest.Log expected = record(directory, true);
+        for (final int from : new int[]{0, 1, 17, expected.calls.size() / 2, expected.calls.size() - 1, expected.calls.size()}) {
+            final RecorderTest.Log played = new RecorderTest.Log();
+            TapeFile.play(RecorderTest.Face.class, played, directory, NAME, from);
+            assertEquals(expected.calls.subList(from, expected.calls.size()), played.calls);
+        }
+    }
+
+    @Test
+    public void playTapeWhichWasNotClosed() throws IOException {
+        final File directory = folder.newFolder("tape");
+        final RecorderTest.Log expected = record(directory, false);
+        final List<TapeFile.Segment> segments = TapeFile.segments(directory, NAME);
+        assertFalse(segments.get(segments.size() - 1).isIndexed());
+        final RecorderTest.Log played = new RecorderTest.Log();
+        TapeFile.play(RecorderTest.Face.class, played, directory, NAME);
+        assertEquals(expected.calls, played.calls);
+        final int from = expected.calls.size() - 3;
+        final RecorderTest.Log tail = new RecorderTest.Log();
+        TapeFile.play(RecorderTest.Face.class, tail, directory, NAME, from);
+        assertEquals(expected.calls.subList(from, expected.calls.size()), tail.calls);
+    }
+
+    /**
+     * @param close true closes the tape, false only flushes the last block.
+     */
+    private static RecorderTest.Log record(final File directory, final boolean close) throws IOException {
+        final TapeFile.Writer writer = new TapeFile.Writer(directory, NAME, SEGMENT_SIZE);
+        final Recorder.Output out = new Recorder.Output(writer, BLOCK_SIZE);
+        final RecorderTest.Face recorder = Recorder.recorder(RecorderTest.Face.class, out);
+        final RecorderTest.Log expected = new RecorderTest.Log();
+        for (int round = 0; round < ROUNDS; round++) {
+            RecorderTest.record(recorder, expected);
+        }
+        out.flush();
+        if (close) {
+            writer.close();
+        }
+        return expected;
+    }
+}
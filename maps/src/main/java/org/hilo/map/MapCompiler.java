@@ -0,0 +1,95 @@
+package org.hilo.map;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.hilo.core.engine.Level;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts XLS and text maps into compiled {@link Level} files.
+ * <p/>
+ * XLS map has width and height in the first row and a symbol per cell in the following rows,
+ * text map has a symbol per character and optional names after the map width, see {@link Level#compile(int, List)}.
+ * Names follow the map on the same lines, so width of a text map is given explicitly.
+ */
+public class MapCompiler {
+    /**
+     * Directory of compiled levels, keyed by hash of their sources and of the compiler inputs.
+     */
+    public static final File CACHE = new File(System.getProperty("hilo.map.cache",
+            new File(System.getProperty("java.io.tmpdir"), "hilo-maps").getPath()));
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2 || (!args[0].endsWith(".xls") && args.length < 3)) {
+            System.err.println("Usage: MapCompiler <source.xls> <target> | MapCompiler <source.txt> <target> <width>");
+            System.exit(1);
+        }
+        final File source = new File(args[0]);
+        final Level level;
+        if (source.getName().endsWith(".xls")) {
+            level = fromXls(Files.readAllBytes(source.toPath()));
+        } else {
+            final List<String> lines = Files.readAllLines(source.toPath(), Charsets.UTF_8);
+            level = Level.compile(Integer.parseInt(args[2]), lines);
+        }
+        level.write(new File(args[1]));
+        System.out.println("Compiled " + level.getWidth() + "x" + level.getHeight() + " level into " + args[1]);
+    }
+
+    /**
+     * @return level of the XLS map resource, compiled once and then loaded from {@link #CACHE}.
+     */
+    public static Level loadXls(final String resource) throws IOException {
+        final byte[] source;
+        try (final InputStream in = MapCompiler.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("No map resource " + resource);
+            }
+            source = ByteStreams.toByteArray(in);
+        }
+        return Level.cached(CACHE, source, new Level.Compiler() {
+            @Override
+            public Level compile() throws IOException {
+                return fromXls(source);
+            }
+        });
+    }
+
+    public static Level fromXls(final byte[] source) throws IOException {
+        final List<String> mapLines = new ArrayList<>();
+        int width = 0;
+        final HSSFWorkbook workbook = new HSSFWorkbook(new ByteArrayInputStream(source));
+        final HSSFSheet sheet = workbook.getSheetAt(0);
+        boolean first = true;
+        for (final Row row : sheet) {
+            if (first) {
+                width = (int) row.getCell(0).getNumericCellValue();
+                first = false;
+            } else {
+                final StringBuilder mapRow = new StringBuilder();
+                for (int cellNumber = 0; cellNumber < width; cellNumber++) {
+                    final Cell cell = row.getCell(cellNumber);
+                    final String cellValue = cell != null ? cell.getStringCellValue() : " ";
+                    if (cellValue.length() > 0) {
+                        mapRow.append(cellValue.substring(0, 1));
+                    } else {
+                        mapRow.append(" ");
+                    }
+                }
+                mapLines.add(mapRow.toString());
+            }
+        }
+        return Level.compile(width, mapLines);
+    }
+}